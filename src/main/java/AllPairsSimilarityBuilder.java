@@ -0,0 +1,622 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds thresholded translation matrices like BlockedSimilarityBuilder,
+ * but skips the pairs of words that provably cannot reach the threshold,
+ * in the style of the AllPairs / L2AP similarity search algorithms.
+ *
+ * Pairs are first compared on unit length copies of the vectors, expressed
+ * in the principal axes of the vocabulary so that most of their length
+ * sits in the first dimensions. At the end of each stage of dimensions,
+ * the dot product computed so far plus the largest value the remaining
+ * dimensions could add (the product of the lengths of what remains of
+ * each vector) is checked against the threshold, and the pair is dropped
+ * as soon as it cannot reach it. A row is also skipped for a whole tile
+ * when the sum of its absolute values times the largest absolute values
+ * of the tile cannot reach it.
+ *
+ * Bounds are given some slack for float rounding, and the similarity
+ * of each remaining pair is computed exactly as BlockedSimilarityBuilder
+ * does, from the original vectors, so the resulting matrix is identical
+ * to its own. The rotated copy takes as much memory as the vectors, and
+ * is only made by the first build that does skip pairs.
+ */
+public class AllPairsSimilarityBuilder {
+
+    // number of stages of dimensions, the bound is checked after each
+    static final int STAGES = 4;
+
+    // slack given to every bound for float rounding errors
+    static final double SLACK = 1e-4;
+
+    // the principal axes are estimated from at most this many words
+    static final int AXIS_SAMPLES = 20000;
+
+    // number of random pairs used to estimate how much pruning saves
+    static final int COST_SAMPLES = 4096;
+
+    // pruning is only used if it is expected to save at least this much
+    // of the work of BlockedSimilarityBuilder, since its kernel is slower
+    static final double MAX_COST = 0.5;
+
+    BlockedSimilarityBuilder builder;
+    VectorSlab slab;
+    int dimensions;
+    int size;
+    int parallelism;
+
+    // first (rotated) dimension of each stage, plus the last one
+    int[] boundaries;
+
+    // principal axes of the vocabulary, null until a build needs them
+    double[][] axes;
+
+    // unit vector of every row in the principal axes, `dimensions` per row
+    float[] projected;
+
+    // length of what remains of each rotated unit vector at the start of
+    // each stage, STAGES + 1 per row (the last one being zero)
+    double[] remaining;
+
+    // largest absolute value of each rotated dimension in each block
+    double[] blockMaxima;
+
+    public AllPairsSimilarityBuilder(VectorSlab slab) {
+
+        this(slab, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param slab the vectors we will compare
+     * @param parallelism the number of threads we will compare with
+     */
+    public AllPairsSimilarityBuilder(VectorSlab slab, int parallelism) {
+
+        this.builder = new BlockedSimilarityBuilder(slab, parallelism);
+        this.slab = slab;
+        this.dimensions = slab.get_dimensions();
+        this.size = slab.get_size();
+        this.parallelism = parallelism;
+
+        // most of the length is in the first stages, so they are shorter
+        boundaries = new int[] {0, dimensions / 8, dimensions / 4, dimensions / 2, dimensions};
+    }
+
+    /**
+     * Builds a translation matrix holding the similarity of every pair of
+     * words that is greater than or equal to `minSimilarity`, identical
+     * to BlockedSimilarityBuilder.build
+     * @param minSimilarity the lowest similarity we will record
+     * @return the translation matrix
+     */
+    public CsrTranslationMatrix build(final double minSimilarity) {
+
+        if(!(minSimilarity > 0.0)) {
+
+            // negative similarities are recorded as zero, so every
+            // pair is recorded and nothing can be skipped
+            return builder.build(minSimilarity);
+        }
+
+        if(estimated_cost(minSimilarity) > MAX_COST) {
+
+            // too few pairs can be skipped at this threshold
+            return builder.build(minSimilarity);
+        }
+
+        synchronized(this) {
+
+            if(projected == null) {
+
+                project(get_axes());
+            }
+        }
+
+        return builder.run(new BlockedSimilarityBuilder.TaskFactory() {
+            @Override
+            public RecursiveTask<BlockedSimilarityBuilder.Entries> create(int block) {
+                return new PrunedTask(block, minSimilarity);
+            }
+        }, true);
+    }
+
+    /**
+     * Estimates, from random pairs of words, the share of the dimensions
+     * of a pair that are read on average before it is either skipped or
+     * fully compared, when looking for similarities of at least `minSimilarity`
+     * @return an estimate of the work of our kernel relative to comparing
+     * every pair in full
+     */
+    double estimated_cost(double minSimilarity) {
+
+        if(size == 0) {
+
+            return 0.0;
+        }
+
+        double[][] axes = get_axes();
+        Random random = new Random(42);
+        double threshold = minSimilarity - SLACK;
+        long read = 0;
+
+        // only the sampled rows are projected, the whole slab may never be
+        float[] vectorA = new float[dimensions];
+        float[] vectorB = new float[dimensions];
+        double[] remainingA = new double[STAGES + 1];
+        double[] remainingB = new double[STAGES + 1];
+
+        for(int sample = 0; sample < COST_SAMPLES; sample++) {
+
+            project_row(axes, random.nextInt(size), vectorA, 0, remainingA, 0);
+            project_row(axes, random.nextInt(size), vectorB, 0, remainingB, 0);
+
+            double partial = 0;
+            int stage = 0;
+            for(; stage < STAGES; stage++) {
+
+                for(int k = boundaries[stage]; k < boundaries[stage + 1]; k++) {
+
+                    partial += (double) vectorA[k] * vectorB[k];
+                }
+                read += boundaries[stage + 1] - boundaries[stage];
+
+                if(partial + remainingA[stage + 1] * remainingB[stage + 1] < threshold) {
+
+                    break;
+                }
+            }
+
+            if(stage == STAGES) {
+
+                // the pair is then compared on its original vectors
+                read += dimensions;
+            }
+        }
+
+        return read / ((double) COST_SAMPLES * Math.max(1, dimensions));
+    }
+
+    /**
+     * @param row some row of our slab
+     * @return the unit vector of the given row, or zeros if it has no length
+     */
+    private double[] unit(int row) {
+
+        double[] result = new double[dimensions];
+        double norm = slab.get_norm(row);
+
+        if(norm != 0) {
+
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                result[dimension] = slab.get(row, dimension) / norm;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return our principal axes, computed on the first call
+     */
+    synchronized double[][] get_axes() {
+
+        if(axes == null) {
+
+            axes = principal_axes();
+        }
+
+        return axes;
+    }
+
+    /**
+     * @return the eigenvectors of the second moment matrix of the unit
+     * vectors of (a sample of) our words, in decreasing order of their
+     * eigenvalues: the directions holding most of the vectors' length
+     */
+    double[][] principal_axes() {
+
+        double[][] moments = new double[dimensions][dimensions];
+        int step = Math.max(1, size / AXIS_SAMPLES);
+
+        for(int row = 0; row < size; row += step) {
+
+            double[] unit = unit(row);
+            for(int i = 0; i < dimensions; i++) {
+
+                for(int j = i; j < dimensions; j++) {
+
+                    moments[i][j] += unit[i] * unit[j];
+                }
+            }
+        }
+
+        for(int i = 0; i < dimensions; i++) {
+
+            for(int j = 0; j < i; j++) {
+
+                moments[i][j] = moments[j][i];
+            }
+        }
+
+        final double[][] vectors = new double[dimensions][dimensions];
+        final double[] values = jacobi_eigen(moments, vectors);
+
+        Integer[] sorted = new Integer[dimensions];
+        for(int index = 0; index < dimensions; index++) {
+
+            sorted[index] = index;
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer x, Integer y) {
+                return Double.compare(values[y], values[x]);
+            }
+        });
+
+        // axes[k] is the k-th eigenvector (a column of `vectors`)
+        double[][] axes = new double[dimensions][dimensions];
+        for(int k = 0; k < dimensions; k++) {
+
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                axes[k][dimension] = vectors[dimension][sorted[k]];
+            }
+        }
+
+        return axes;
+    }
+
+    /**
+     * Diagonalizes a symmetric matrix with the cyclic Jacobi method
+     * @param matrix the symmetric matrix, which is overwritten
+     * @param vectors receives the eigenvectors, as columns
+     * @return the eigenvalues
+     */
+    static double[] jacobi_eigen(double[][] matrix, double[][] vectors) {
+
+        int n = matrix.length;
+
+        for(int i = 0; i < n; i++) {
+
+            Arrays.fill(vectors[i], 0.0);
+            vectors[i][i] = 1.0;
+        }
+
+        double total = 0;
+        for(int i = 0; i < n; i++) {
+
+            for(int j = 0; j < n; j++) {
+
+                total += matrix[i][j] * matrix[i][j];
+            }
+        }
+
+        for(int sweep = 0; sweep < 50; sweep++) {
+
+            double off = 0;
+            for(int p = 0; p < n; p++) {
+
+                for(int q = p + 1; q < n; q++) {
+
+                    off += matrix[p][q] * matrix[p][q];
+                }
+            }
+
+            if(off <= 1e-24 * total) {
+
+                break;
+            }
+
+            for(int p = 0; p < n; p++) {
+
+                for(int q = p + 1; q < n; q++) {
+
+                    if(matrix[p][q] == 0.0) {
+
+                        continue;
+                    }
+
+                    double theta = (matrix[q][q] - matrix[p][p]) / (2 * matrix[p][q]);
+                    double t = theta == 0.0 ? 1.0
+                            : Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+
+                    for(int k = 0; k < n; k++) {
+
+                        double kp = matrix[k][p];
+                        double kq = matrix[k][q];
+                        matrix[k][p] = c * kp - s * kq;
+                        matrix[k][q] = s * kp + c * kq;
+                    }
+
+                    for(int k = 0; k < n; k++) {
+
+                        double pk = matrix[p][k];
+                        double qk = matrix[q][k];
+                        matrix[p][k] = c * pk - s * qk;
+                        matrix[q][k] = s * pk + c * qk;
+                    }
+
+                    for(int k = 0; k < n; k++) {
+
+                        double kp = vectors[k][p];
+                        double kq = vectors[k][q];
+                        vectors[k][p] = c * kp - s * kq;
+                        vectors[k][q] = s * kp + c * kq;
+                    }
+                }
+            }
+        }
+
+        double[] values = new double[n];
+        for(int i = 0; i < n; i++) {
+
+            values[i] = matrix[i][i];
+        }
+
+        return values;
+    }
+
+    /**
+     * Fills `projected`, `remaining` and `blockMaxima` from
+     * the unit vectors of every row, in the given axes
+     */
+    private void project(final double[][] axes) {
+
+        final int blockSize = BlockedSimilarityBuilder.BLOCK_SIZE;
+        int blocks = (size + blockSize - 1) / blockSize;
+
+        projected = new float[size * dimensions];
+        remaining = new double[size * (STAGES + 1)];
+        blockMaxima = new double[blocks * dimensions];
+
+        List<RecursiveAction> actions = new ArrayList<>();
+        for(int block = 0; block < blocks; block++) {
+
+            final int rowStart = block * blockSize;
+            final int rowEnd = Math.min(size, rowStart + blockSize);
+            final int maximaOffset = block * dimensions;
+
+            actions.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+
+                    for(int row = rowStart; row < rowEnd; row++) {
+
+                        int base = row * dimensions;
+                        project_row(axes, row, projected, base, remaining, row * (STAGES + 1));
+
+                        for(int k = 0; k < dimensions; k++) {
+
+                            blockMaxima[maximaOffset + k] = Math.max(blockMaxima[maximaOffset + k],
+                                    Math.abs(projected[base + k]));
+                        }
+                    }
+                }
+            });
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+
+            for(RecursiveAction action : actions) {
+
+                pool.execute(action);
+            }
+
+            for(RecursiveAction action : actions) {
+
+                action.join();
+            }
+        } finally {
+
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes the unit vector of `row` in the given axes to `vector` from
+     * `base`, and the lengths of what remains of it at the start of each
+     * stage to `lengths` from `lengthBase`
+     */
+    private void project_row(double[][] axes, int row, float[] vector, int base,
+                             double[] lengths, int lengthBase) {
+
+        double[] unit = unit(row);
+
+        for(int k = 0; k < dimensions; k++) {
+
+            double value = 0;
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                value += axes[k][dimension] * unit[dimension];
+            }
+
+            vector[base + k] = (float) value;
+        }
+
+        // lengths of the remaining dimensions, from the last stage back
+        double squares = 0;
+        for(int stage = STAGES - 1; stage >= 0; stage--) {
+
+            for(int k = boundaries[stage]; k < boundaries[stage + 1]; k++) {
+
+                double value = vector[base + k];
+                squares += value * value;
+            }
+            lengths[lengthBase + stage] = Math.sqrt(squares);
+        }
+    }
+
+    /**
+     * Compares one block of rows with itself and every following
+     * block, skipping the pairs that cannot reach `minSimilarity`
+     */
+    class PrunedTask extends RecursiveTask<BlockedSimilarityBuilder.Entries> {
+
+        int block;
+        double minSimilarity;
+        double threshold;
+
+        // original vectors of our block and of the block we compare it with
+        float[] a;
+        float[] b;
+        int rowA;
+        int rowB;
+
+        BlockedSimilarityBuilder.Entries entries;
+
+        PrunedTask(int block, double minSimilarity) {
+
+            this.block = block;
+            this.minSimilarity = minSimilarity;
+            this.threshold = minSimilarity - SLACK;
+        }
+
+        @Override
+        protected BlockedSimilarityBuilder.Entries compute() {
+
+            int blockSize = BlockedSimilarityBuilder.BLOCK_SIZE;
+            int rowEnd = Math.min(size, (block + 1) * blockSize);
+
+            rowA = block * blockSize;
+            a = new float[blockSize * dimensions];
+            b = new float[blockSize * dimensions];
+            builder.pack(rowA, rowEnd, a);
+
+            entries = new BlockedSimilarityBuilder.Entries();
+
+            for(int other = block; other * blockSize < size; other++) {
+
+                rowB = other * blockSize;
+                int otherEnd = Math.min(size, rowB + blockSize);
+
+                if(other == block) {
+
+                    System.arraycopy(a, 0, b, 0, (rowEnd - rowA) * dimensions);
+                } else {
+
+                    builder.pack(rowB, otherEnd, b);
+                }
+
+                compare(rowEnd - rowA, other, otherEnd - rowB, other == block);
+            }
+
+            return entries;
+        }
+
+        private void compare(int countA, int otherBlock, int countB, boolean diagonal) {
+
+            int firstStage = boundaries[1];
+            int maximaOffset = otherBlock * dimensions;
+
+            for(int i = 0; i < countA; i++) {
+
+                int offsetA = (rowA + i) * dimensions;
+
+                // no word of this tile can reach the threshold
+                double tileBound = 0;
+                for(int k = 0; k < dimensions; k++) {
+
+                    tileBound += Math.abs(projected[offsetA + k]) * blockMaxima[maximaOffset + k];
+                }
+                if(tileBound < threshold) {
+
+                    continue;
+                }
+
+                int j = diagonal ? i : 0;
+
+                // first stage four columns at a time, sharing each read of row i
+                for(; j + 3 < countB; j += 4) {
+
+                    int offset0 = (rowB + j) * dimensions;
+                    int offset1 = offset0 + dimensions;
+                    int offset2 = offset1 + dimensions;
+                    int offset3 = offset2 + dimensions;
+
+                    double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+                    for(int k = 0; k < firstStage; k++) {
+
+                        double value = projected[offsetA + k];
+                        sum0 += value * projected[offset0 + k];
+                        sum1 += value * projected[offset1 + k];
+                        sum2 += value * projected[offset2 + k];
+                        sum3 += value * projected[offset3 + k];
+                    }
+
+                    candidate(i, j, sum0);
+                    candidate(i, j + 1, sum1);
+                    candidate(i, j + 2, sum2);
+                    candidate(i, j + 3, sum3);
+                }
+
+                for(; j < countB; j++) {
+
+                    int offsetB = (rowB + j) * dimensions;
+
+                    double sum = 0;
+                    for(int k = 0; k < firstStage; k++) {
+
+                        sum += (double) projected[offsetA + k] * projected[offsetB + k];
+                    }
+
+                    candidate(i, j, sum);
+                }
+            }
+        }
+
+        /**
+         * Goes on comparing rows `i` of our block and `j` of the other
+         * block, after the first stage, as long as they may be similar
+         * enough, and records their similarity if they are
+         * @param partial the dot product of the first stage
+         */
+        private void candidate(int i, int j, double partial) {
+
+            int remainingA = (rowA + i) * (STAGES + 1);
+            int remainingB = (rowB + j) * (STAGES + 1);
+
+            if(partial + remaining[remainingA + 1] * remaining[remainingB + 1] < threshold) {
+
+                return;
+            }
+
+            int offsetA = (rowA + i) * dimensions;
+            int offsetB = (rowB + j) * dimensions;
+
+            for(int stage = 1; stage < STAGES; stage++) {
+
+                for(int k = boundaries[stage]; k < boundaries[stage + 1]; k++) {
+
+                    partial += (double) projected[offsetA + k] * projected[offsetB + k];
+                }
+
+                if(partial + remaining[remainingA + stage + 1] * remaining[remainingB + stage + 1]
+                        < threshold) {
+
+                    return;
+                }
+            }
+
+            // the same computation as BlockedSimilarityBuilder.multiply_tile
+            double sum = VectorKernels.dot(a, i * dimensions, b, j * dimensions, dimensions);
+
+            double similarity = builder.cosine(sum, slab.get_norm(rowA + i), rowB + j);
+            if(similarity >= minSimilarity) {
+
+                entries.add(rowA + i, rowB + j, similarity);
+            }
+        }
+    }
+}
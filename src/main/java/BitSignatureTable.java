@@ -0,0 +1,134 @@
+import info.debatty.java.lsh.SuperBit;
+
+/**
+ * The SuperBit bit signature of every word of an EmbeddingSpace, packed
+ * into longs. The fraction of differing bits between two signatures
+ * estimates the angle between their vectors, so the cosine similarity
+ * can be approximated from a Hamming distance, computed with a few
+ * popcounts instead of a full dot product.
+ */
+public class BitSignatureTable {
+
+    SuperBit superBit;
+    int bits;
+    int words;
+    int size;
+
+    // the signature of each row, `words` longs per row
+    long[] values;
+
+    /**
+     * Computes the signature of every vector of the given slab
+     * @param slab the vectors we will sign
+     * @param bits the number of bits we want per signature... the
+     *             actual number is rounded down to a multiple of the
+     *             number of dimensions if it is larger than it
+     * @param seed seed of the random hyperplanes
+     */
+    public BitSignatureTable(VectorSlab slab, int bits, long seed) {
+
+        int dimensions = slab.get_dimensions();
+
+        // SuperBit needs n <= dimensions, and gives n * l bits
+        int n = Math.min(dimensions, bits);
+        int l = Math.max(1, bits / n);
+
+        this.superBit = new SuperBit(dimensions, n, l, seed);
+        this.bits = n * l;
+        this.words = (this.bits + 63) / 64;
+        this.size = slab.get_size();
+        this.values = new long[size * words];
+
+        double[] contents = new double[dimensions];
+        for(int row = 0; row < size; row++) {
+
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                contents[dimension] = slab.get(row, dimension);
+            }
+
+            pack(superBit.signature(contents), values, row * words);
+        }
+    }
+
+    /**
+     * @param row some row of the signed slab
+     * @return the signature of the vector at `row`
+     */
+    public Signature get_signature(int row) {
+
+        return new Signature(this, values, row * words);
+    }
+
+    /**
+     * @param vector some vector, which need not be a word of our space
+     * @return the signature of the given vector
+     */
+    public Signature sign(WordVector vector) {
+
+        long[] packed = new long[words];
+        pack(superBit.signature(vector.get_primitive_contents()), packed, 0);
+        return new Signature(this, packed, 0);
+    }
+
+    /**
+     * @param a some signature of this table
+     * @param b some signature of this table
+     * @return the number of bits that differ between the signatures
+     */
+    public int hamming_distance(Signature a, Signature b) {
+
+        int distance = 0;
+        for(int word = 0; word < words; word++) {
+
+            distance += Long.bitCount(a.values[a.offset + word] ^ b.values[b.offset + word]);
+        }
+
+        return distance;
+    }
+
+    /**
+     * @param a some signature of this table
+     * @param b some signature of this table
+     * @return the cosine similarity of the signed vectors, estimated
+     * from the fraction of differing bits (the estimated angle, over pi)
+     */
+    public double estimate_cosine(Signature a, Signature b) {
+
+        return Math.cos(Math.PI * hamming_distance(a, b) / bits);
+    }
+
+    public int get_bits() {
+
+        return this.bits;
+    }
+
+    private static void pack(boolean[] signature, long[] target, int offset) {
+
+        for(int bit = 0; bit < signature.length; bit++) {
+
+            if(signature[bit]) {
+
+                target[offset + (bit >>> 6)] |= 1L << (bit & 63);
+            }
+        }
+    }
+
+    /**
+     * The signature of one vector: longs starting at `offset`
+     * in `values`, which may be shared with a whole table
+     */
+    public static class Signature {
+
+        final BitSignatureTable table;
+        final long[] values;
+        final int offset;
+
+        public Signature(BitSignatureTable table, long[] values, int offset) {
+
+            this.table = table;
+            this.values = values;
+            this.offset = offset;
+        }
+    }
+}
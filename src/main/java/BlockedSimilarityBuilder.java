@@ -0,0 +1,411 @@
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the cosine similarity of every pair of words of a VectorSlab
+ * on a fork-join pool. The vocabulary is split into blocks of
+ * BLOCK_SIZE rows, and each task compares one block with other blocks
+ * one tile at a time: both blocks are copied into small contiguous
+ * arrays and multiplied together, so each row is read from memory
+ * once per tile instead of once per pair.
+ *
+ * Entries kept by each task are passed to a TranslationMatrixBuilder
+ * by the calling thread, and frozen into a CsrTranslationMatrix.
+ */
+public class BlockedSimilarityBuilder {
+
+    // number of rows in each block (and each side of a tile)
+    static final int BLOCK_SIZE = 128;
+
+    VectorSlab slab;
+    int parallelism;
+    int dimensions;
+    int size;
+
+    // true if we compare each word with the opposite of the others,
+    // recording how dissimilar words are rather than how similar
+    boolean negated;
+
+    public BlockedSimilarityBuilder(VectorSlab slab) {
+
+        this(slab, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param slab the vectors we will compare
+     * @param parallelism the number of threads we will compare with
+     */
+    public BlockedSimilarityBuilder(VectorSlab slab, int parallelism) {
+
+        this.slab = slab;
+        this.parallelism = parallelism;
+        this.dimensions = slab.get_dimensions();
+        this.size = slab.get_size();
+    }
+
+    /**
+     * Has this builder record the similarity of each word with the
+     * opposite (inverse) of the other, that is minus their cosine
+     * similarity, as the scorer compares negated query terms. The
+     * highest such similarities are those of the most dissimilar words.
+     * @param negated
+     * @return this builder
+     */
+    public BlockedSimilarityBuilder set_negated(boolean negated) {
+
+        this.negated = negated;
+        return this;
+    }
+
+    /**
+     * Builds a translation matrix holding the similarity of every pair of
+     * words (each word with itself included) that is greater than or equal
+     * to `minSimilarity`. As in WordVector.cosine_similarity with a
+     * tolerance of zero, negative similarities are recorded as zero.
+     * @param minSimilarity the lowest similarity we will record... use
+     *                      Double.NEGATIVE_INFINITY to record every pair
+     * @return the translation matrix
+     */
+    public CsrTranslationMatrix build(final double minSimilarity) {
+
+        return run(new TaskFactory() {
+            @Override
+            public RecursiveTask<Entries> create(int block) {
+                return new ThresholdTask(block, minSimilarity);
+            }
+        }, true);
+    }
+
+    /**
+     * Builds a translation matrix holding, for each word, its `maxEntries`
+     * highest similarities (the word itself included), recorded in both
+     * directions. Each row keeps a bounded heap of `maxEntries` pairs, so
+     * a worker needs memory for BLOCK_SIZE * `maxEntries` pairs rather than
+     * for a whole row. Words with equal similarities are all kept, as
+     * long as they fit within `maxEntries`. Negative similarities are
+     * recorded as zero.
+     * @param maxEntries the number of similarities we keep for each word
+     * @return the translation matrix
+     */
+    public CsrTranslationMatrix build_top_entries(final int maxEntries) {
+
+        return run(new TaskFactory() {
+            @Override
+            public RecursiveTask<Entries> create(int block) {
+                return new TopEntriesTask(block, maxEntries);
+            }
+        }, false);
+    }
+
+    /**
+     * Runs one task per block on our pool, passing the entries of
+     * each task to a matrix builder in block order
+     * @param triangular true if tasks only compare their block with the
+     *                   following blocks, for reporting progress
+     */
+    CsrTranslationMatrix run(TaskFactory factory, boolean triangular) {
+
+        // every word of the slab gets a row, its own
+        String[] terms = new String[size];
+        for(int row = 0; row < size; row++) {
+
+            terms[row] = slab.get_term(row);
+        }
+
+        TranslationMatrixBuilder result = new TranslationMatrixBuilder(terms);
+
+        int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        double totalPairs = triangular ? (double) size * (size + 1) / 2 : (double) size * size;
+        double donePairs = 0;
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+
+            // we keep a few blocks ahead of the merge in flight, so
+            // finished blocks do not pile up in memory
+            ArrayDeque<RecursiveTask<Entries>> pending = new ArrayDeque<>();
+            int nextBlock = 0;
+            int mergedBlock = 0;
+
+            while(nextBlock < blocks || !pending.isEmpty()) {
+
+                while(nextBlock < blocks && pending.size() < 2 * parallelism) {
+
+                    RecursiveTask<Entries> task = factory.create(nextBlock++);
+                    pool.execute(task);
+                    pending.add(task);
+                }
+
+                Entries entries = pending.poll().join();
+
+                // pairs are recorded in both directions
+                result.put_all(entries.rows, entries.columns, entries.similarities, entries.size);
+
+                int rowStart = mergedBlock * BLOCK_SIZE;
+                int rowEnd = Math.min(size, rowStart + BLOCK_SIZE);
+                for(int row = rowStart; row < rowEnd; row++) {
+
+                    donePairs += triangular ? size - row : size;
+                }
+                mergedBlock++;
+
+                double percent = (donePairs / totalPairs) * 100.00;
+                System.out.print("Progress: ");
+                System.out.print(percent);
+                System.out.println("%");
+            }
+        } finally {
+
+            pool.shutdown();
+        }
+
+        return result.freeze();
+    }
+
+    /**
+     * Copies the vectors of the given rows into `target`, one after another
+     */
+    void pack(int rowStart, int rowEnd, float[] target) {
+
+        FloatBuffer segment = null;
+        FloatBuffer view = null;
+
+        for(int row = rowStart; row < rowEnd; row++) {
+
+            int base = (row - rowStart) * dimensions;
+            FloatBuffer data = slab.get_data(row);
+
+            if(data == null) {
+
+                // quantized slabs have no float data, we decode them
+                for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                    target[base + dimension] = slab.get(row, dimension);
+                }
+                continue;
+            }
+
+            // rows of a block may span two segments of the slab
+            if(data != segment) {
+
+                segment = data;
+                view = data.duplicate();
+            }
+
+            view.position(slab.get_offset(row));
+            view.get(target, base, dimensions);
+        }
+    }
+
+    /**
+     * Compares every row of block `a` with every row of block `b`,
+     * passing each cosine similarity to `consumer`
+     * @param a vectors of the rows starting at `rowA`
+     * @param countA number of rows in `a`
+     * @param b vectors of the rows starting at `rowB`
+     * @param countB number of rows in `b`
+     * @param diagonal true if `a` and `b` are the same block, in
+     *                 which case each pair is only compared once
+     */
+    void multiply_tile(float[] a, int rowA, int countA,
+                       float[] b, int rowB, int countB,
+                       boolean diagonal, PairConsumer consumer) {
+
+        double[] dots = new double[countB];
+
+        for(int i = 0; i < countA; i++) {
+
+            double normA = slab.get_norm(rowA + i);
+            int first = diagonal ? i : 0;
+
+            // row i against the rest of the tile, with the SIMD kernel if we have it
+            VectorKernels.dot_rows(a, i * dimensions, b, first * dimensions,
+                    countB - first, dimensions, dots);
+
+            for(int j = first; j < countB; j++) {
+
+                consumer.accept(rowA + i, rowB + j, cosine(dots[j - first], normA, rowB + j));
+            }
+        }
+    }
+
+    /**
+     * @return the cosine similarity of a pair from its dot product, as in
+     * cosine_similarity with a tolerance of zero: negative similarities
+     * are zero, and vectors with no length are not similar to anything.
+     * If we are negated, this is the similarity with the opposite of rowB.
+     */
+    double cosine(double dot, double normA, int rowB) {
+
+        double similarity = (negated ? -dot : dot) / (normA * slab.get_norm(rowB));
+
+        return similarity >= 0.0 ? similarity : 0.0;
+    }
+
+    /**
+     * Compares one block of rows with itself and every following block,
+     * keeping the pairs at least as similar as `minSimilarity`
+     */
+    class ThresholdTask extends RecursiveTask<Entries> {
+
+        int block;
+        double minSimilarity;
+
+        ThresholdTask(int block, double minSimilarity) {
+
+            this.block = block;
+            this.minSimilarity = minSimilarity;
+        }
+
+        @Override
+        protected Entries compute() {
+
+            int rowStart = block * BLOCK_SIZE;
+            int rowEnd = Math.min(size, rowStart + BLOCK_SIZE);
+
+            float[] a = new float[BLOCK_SIZE * dimensions];
+            float[] b = new float[BLOCK_SIZE * dimensions];
+            pack(rowStart, rowEnd, a);
+
+            final Entries entries = new Entries();
+            PairConsumer consumer = new PairConsumer() {
+                @Override
+                public void accept(int row, int column, double similarity) {
+                    if(similarity >= minSimilarity) {
+                        entries.add(row, column, similarity);
+                    }
+                }
+            };
+
+            multiply_tile(a, rowStart, rowEnd - rowStart, a, rowStart, rowEnd - rowStart,
+                    true, consumer);
+
+            for(int otherStart = rowEnd; otherStart < size; otherStart += BLOCK_SIZE) {
+
+                int otherEnd = Math.min(size, otherStart + BLOCK_SIZE);
+                pack(otherStart, otherEnd, b);
+
+                multiply_tile(a, rowStart, rowEnd - rowStart, b, otherStart, otherEnd - otherStart,
+                        false, consumer);
+            }
+
+            return entries;
+        }
+    }
+
+    /**
+     * Compares one block of rows with every block, keeping
+     * the `maxEntries` most similar pairs of each row
+     */
+    class TopEntriesTask extends RecursiveTask<Entries> {
+
+        int block;
+        int maxEntries;
+
+        TopEntriesTask(int block, int maxEntries) {
+
+            this.block = block;
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected Entries compute() {
+
+            final int rowStart = block * BLOCK_SIZE;
+            int rowEnd = Math.min(size, rowStart + BLOCK_SIZE);
+
+            float[] a = new float[BLOCK_SIZE * dimensions];
+            float[] b = new float[BLOCK_SIZE * dimensions];
+            pack(rowStart, rowEnd, a);
+
+            final SimilarityHeap[] heaps = new SimilarityHeap[rowEnd - rowStart];
+            for(int row = 0; row < heaps.length; row++) {
+
+                heaps[row] = new SimilarityHeap(maxEntries);
+            }
+
+            PairConsumer consumer = new PairConsumer() {
+                @Override
+                public void accept(int row, int column, double similarity) {
+                    // ranked on the value the matrix stores, as MatrixFile.prune ranks them
+                    heaps[row - rowStart].offer(column, (float) similarity, maxEntries);
+                }
+            };
+
+            for(int otherStart = 0; otherStart < size; otherStart += BLOCK_SIZE) {
+
+                int otherEnd = Math.min(size, otherStart + BLOCK_SIZE);
+                float[] other = a;
+                if(otherStart != rowStart) {
+
+                    pack(otherStart, otherEnd, b);
+                    other = b;
+                }
+
+                multiply_tile(a, rowStart, rowEnd - rowStart, other, otherStart, otherEnd - otherStart,
+                        false, consumer);
+            }
+
+            Entries entries = new Entries();
+            int[] columns = new int[maxEntries];
+            double[] similarities = new double[maxEntries];
+
+            for(int row = 0; row < heaps.length; row++) {
+
+                int count = heaps[row].drain_descending(columns, similarities);
+                for(int index = 0; index < count; index++) {
+
+                    entries.add(rowStart + row, columns[index], similarities[index]);
+                }
+            }
+
+            return entries;
+        }
+    }
+
+    /**
+     * Receives the similarity of each pair compared in a tile
+     */
+    interface PairConsumer {
+
+        void accept(int row, int column, double similarity);
+    }
+
+    /**
+     * Creates the task comparing the given block
+     */
+    interface TaskFactory {
+
+        RecursiveTask<Entries> create(int block);
+    }
+
+    /**
+     * Growable list of (row, column, similarity) entries
+     */
+    static class Entries {
+
+        int[] rows = new int[1024];
+        int[] columns = new int[1024];
+        double[] similarities = new double[1024];
+        int size;
+
+        void add(int row, int column, double similarity) {
+
+            if(size == rows.length) {
+
+                rows = Arrays.copyOf(rows, size * 2);
+                columns = Arrays.copyOf(columns, size * 2);
+                similarities = Arrays.copyOf(similarities, size * 2);
+            }
+
+            rows[size] = row;
+            columns[size] = column;
+            similarities[size] = similarity;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,521 @@
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only SimilarityMatrix stored in compressed sparse row form:
+ * the entries of every row one after another, each an int column (the
+ * row of the other word) and a float similarity, with the columns of
+ * each row sorted so an entry is found by binary search. Where the
+ * String maps of TranslationMatrix take well over a hundred bytes per
+ * entry, an entry here takes eight, and a row is read from contiguous
+ * memory. This is the layout of MatrixFile.
+ *
+ * Like VectorSlab, the columns and values may wrap heap arrays or
+ * live off-heap. They are held in segments of SEGMENT_ENTRIES entries,
+ * as one mapped buffer cannot exceed 2GB, so a matrix may hold more
+ * entries than an int can count.
+ */
+public class CsrTranslationMatrix extends SimilarityMatrix {
+
+    // rows shorter than this are searched linearly
+    static final int LINEAR_SEARCH_LENGTH = 16;
+
+    // entries of each segment of the columns and values (1GB of each)
+    static final int SEGMENT_SHIFT = 28;
+    static final int SEGMENT_ENTRIES = 1 << SEGMENT_SHIFT;
+
+    // the word of each row
+    String[] terms;
+
+    // the row of each word
+    TermDictionary rows;
+
+    // index of the first entry of each row, plus the number of entries
+    long[] rowOffsets;
+
+    // column and similarity of every entry, row after row,
+    // SEGMENT_ENTRIES entries to a segment
+    transient IntBuffer[] columns;
+    transient FloatBuffer[] values;
+
+    // our row for each id of the dictionary given to set_dictionary,
+    // -1 for ids of words we have no row for
+    transient volatile int[] idRows;
+
+    // the id of each of our rows in that dictionary
+    transient volatile int[] rowIds;
+
+    int size;
+
+    /**
+     * @param terms the word of each row
+     * @param rowOffsets index of the first entry of each row, then
+     *                   the number of entries
+     * @param columns column of each entry, sorted within each row
+     * @param values similarity of each entry
+     */
+    public CsrTranslationMatrix(String[] terms, long[] rowOffsets,
+                                IntBuffer columns, FloatBuffer values) {
+
+        this(terms, rowOffsets, split(columns), split(values));
+    }
+
+    /**
+     * @param terms the word of each row
+     * @param rowOffsets index of the first entry of each row, then
+     *                   the number of entries
+     * @param columns column of each entry, sorted within each row, in
+     *                segments of SEGMENT_ENTRIES entries (but the last)
+     * @param values similarity of each entry, in segments like `columns`
+     */
+    public CsrTranslationMatrix(String[] terms, long[] rowOffsets,
+                                IntBuffer[] columns, FloatBuffer[] values) {
+
+        this.terms = terms;
+        this.rowOffsets = rowOffsets;
+        this.columns = columns;
+        this.values = values;
+        this.size = terms.length;
+        this.rows = new TermDictionary(terms);
+    }
+
+    /**
+     * @return views of SEGMENT_ENTRIES entries of `buffer`, in order
+     */
+    static IntBuffer[] split(IntBuffer buffer) {
+
+        IntBuffer[] segments = new IntBuffer[segment_count(buffer.limit())];
+        for(int segment = 0; segment < segments.length; segment++) {
+
+            IntBuffer view = buffer.duplicate();
+            view.position(segment * SEGMENT_ENTRIES);
+            view.limit((int) Math.min(buffer.limit(), (long) (segment + 1) * SEGMENT_ENTRIES));
+            segments[segment] = view.slice();
+        }
+
+        return segments;
+    }
+
+    /**
+     * @return views of SEGMENT_ENTRIES entries of `buffer`, in order
+     */
+    static FloatBuffer[] split(FloatBuffer buffer) {
+
+        FloatBuffer[] segments = new FloatBuffer[segment_count(buffer.limit())];
+        for(int segment = 0; segment < segments.length; segment++) {
+
+            FloatBuffer view = buffer.duplicate();
+            view.position(segment * SEGMENT_ENTRIES);
+            view.limit((int) Math.min(buffer.limit(), (long) (segment + 1) * SEGMENT_ENTRIES));
+            segments[segment] = view.slice();
+        }
+
+        return segments;
+    }
+
+    /**
+     * @return the number of segments holding `entries` entries
+     */
+    static int segment_count(long entries) {
+
+        return (int) ((entries + SEGMENT_ENTRIES - 1) >>> SEGMENT_SHIFT);
+    }
+
+    /**
+     * @param entry index of some entry
+     * @return the column of the given entry
+     */
+    public int get_column(long entry) {
+
+        return columns[(int) (entry >>> SEGMENT_SHIFT)].get((int) entry & (SEGMENT_ENTRIES - 1));
+    }
+
+    /**
+     * @param entry index of some entry
+     * @return the similarity of the given entry
+     */
+    public float get_value(long entry) {
+
+        return values[(int) (entry >>> SEGMENT_SHIFT)].get((int) entry & (SEGMENT_ENTRIES - 1));
+    }
+
+    /**
+     * @param source some matrix holding its similarities
+     * @return a copy of the given matrix in compressed sparse row form
+     * @throws IllegalArgumentException if the matrix computes its
+     * similarities rather than holding them (a LazyTranslationMatrix)
+     */
+    public static CsrTranslationMatrix copy_of(SimilarityMatrix source) {
+
+        if(source instanceof CsrTranslationMatrix) {
+
+            return (CsrTranslationMatrix) source;
+        }
+
+        if(!(source instanceof TranslationMatrix)) {
+
+            throw new IllegalArgumentException("Only a matrix holding its similarities can be copied");
+        }
+
+        TranslationMatrix matrix = (TranslationMatrix) source;
+
+        // every word gets a row, even those that only appear in a column
+        TermDictionary dictionary = new TermDictionary();
+        long entries = 0;
+        for(Map.Entry<String, HashMap<String, Double>> row : matrix.translations.entrySet()) {
+
+            dictionary.add(row.getKey());
+            for(String other : row.getValue().keySet()) {
+
+                dictionary.add(other);
+            }
+            entries += row.getValue().size();
+        }
+
+        if(entries > Integer.MAX_VALUE) {
+
+            throw new IllegalArgumentException("Too many entries for one matrix: " + entries);
+        }
+
+        int size = dictionary.get_size();
+        String[] terms = new String[size];
+        for(int row = 0; row < size; row++) {
+
+            terms[row] = dictionary.get_term(row);
+        }
+
+        long[] rowOffsets = new long[size + 1];
+        int[] columns = new int[(int) entries];
+        float[] values = new float[(int) entries];
+
+        int entry = 0;
+        for(int row = 0; row < size; row++) {
+
+            rowOffsets[row] = entry;
+
+            HashMap<String, Double> distribution = matrix.translations.get(terms[row]);
+            if(distribution == null) {
+
+                continue;
+            }
+
+            // sort the entries of the row by column
+            long[] order = new long[distribution.size()];
+            float[] similarities = new float[order.length];
+            int index = 0;
+            for(Map.Entry<String, Double> other : distribution.entrySet()) {
+
+                similarities[index] = other.getValue().floatValue();
+                order[index] = ((long) dictionary.get_id(other.getKey()) << 32) | index;
+                index++;
+            }
+            Arrays.sort(order);
+
+            for(index = 0; index < order.length; index++) {
+
+                columns[entry] = (int) (order[index] >>> 32);
+                values[entry] = similarities[(int) order[index]];
+                entry++;
+            }
+        }
+        rowOffsets[size] = entry;
+
+        return new CsrTranslationMatrix(terms, rowOffsets,
+                IntBuffer.wrap(columns), FloatBuffer.wrap(values));
+    }
+
+    /**
+     * @param X the first arbitrary word
+     * @param Y the second arbitrary word
+     * @return returns the similarity value of these words
+     * if it exists, otherwise, returns zero.
+     */
+    @Override
+    public Double get_similarity(String X, String Y) {
+
+        return get_row_similarity(rows.get_id(X), rows.get_id(Y));
+    }
+
+    /**
+     * @param X id of the first word, in the dictionary given to set_dictionary
+     * @param Y id of the second word
+     * @return the similarity of the words of the given ids
+     * if it exists, otherwise, returns zero.
+     */
+    @Override
+    public double get_similarity(int X, int Y) {
+
+        int[] idRows = this.idRows;
+
+        if(idRows == null) {
+
+            throw new IllegalStateException("No dictionary was given to look words up by id");
+        }
+
+        if(X < 0 || Y < 0 || X >= idRows.length || Y >= idRows.length) {
+
+            return 0.0;
+        }
+
+        return get_row_similarity(idRows[X], idRows[Y]);
+    }
+
+    /**
+     * @param row some row of this matrix, or -1
+     * @param column some row of this matrix, or -1
+     * @return the similarity stored at (row, column), or zero
+     */
+    public double get_row_similarity(int row, int column) {
+
+        if(row < 0 || column < 0) {
+
+            return 0.0;
+        }
+
+        long entry = find(row, column);
+        return entry >= 0 ? get_value(entry) : 0.0;
+    }
+
+    /**
+     * @return the index of the entry of `row` at `column`, or -1 if
+     * there is none
+     */
+    long find(int row, int column) {
+
+        long low = rowOffsets[row];
+        long high = rowOffsets[row + 1] - 1;
+
+        // narrow the range by halving it...
+        while(high - low >= LINEAR_SEARCH_LENGTH) {
+
+            long middle = (low + high) >>> 1;
+            int value = get_column(middle);
+
+            if(value < column) {
+
+                low = middle + 1;
+            } else if(value > column) {
+
+                high = middle - 1;
+            } else {
+
+                return middle;
+            }
+        }
+
+        // ...then scan what is left
+        for(long entry = low; entry <= high; entry++) {
+
+            int value = get_column(entry);
+
+            if(value >= column) {
+
+                return value == column ? entry : -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param term some word
+     * @param k the number of neighbours we want
+     * @return the (at most) `k` words with the highest similarity to
+     * `term` in this matrix, most similar first, each with its row
+     * in this matrix. Words tied with the `k`th are kept in no
+     * particular order, as long as they fit.
+     */
+    @Override
+    public List<Neighbor> top_neighbors(String term, int k) {
+
+        ArrayList<Neighbor> result = new ArrayList<>();
+        int row = rows.get_id(term);
+
+        if(row < 0 || k <= 0) {
+
+            return result;
+        }
+
+        // select the `k` highest similarities of the row in one pass
+        SimilarityHeap heap = new SimilarityHeap(k);
+        long end = rowOffsets[row + 1];
+        for(long entry = rowOffsets[row]; entry < end; entry++) {
+
+            heap.offer(get_column(entry), get_value(entry), k);
+        }
+
+        int[] neighborRows = new int[heap.size()];
+        double[] similarities = new double[neighborRows.length];
+        heap.drain_descending(neighborRows, similarities);
+
+        for(int index = 0; index < neighborRows.length; index++) {
+
+            result.add(new Neighbor(terms[neighborRows[index]], neighborRows[index],
+                    similarities[index]));
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets the dictionary that get_similarity(int, int) looks our words
+     * up by id in, which gives an id to each of our words that has none
+     * @param dictionary the dictionary of our embedding space
+     */
+    @Override
+    public synchronized void set_dictionary(TermDictionary dictionary) {
+
+        if(this.dictionary == dictionary && idRows != null) {
+
+            return;
+        }
+
+        int[] rowIds = new int[size];
+        for(int row = 0; row < size; row++) {
+
+            rowIds[row] = dictionary.add(terms[row]);
+        }
+
+        int[] result = new int[dictionary.get_size()];
+        Arrays.fill(result, -1);
+        for(int row = 0; row < size; row++) {
+
+            result[rowIds[row]] = row;
+        }
+
+        // idRows last: readers that see it see its rowIds too
+        this.dictionary = dictionary;
+        this.rowIds = rowIds;
+        this.idRows = result;
+    }
+
+    /**
+     * @param X id of some word, in the dictionary given to set_dictionary
+     * @return the entries of the row of the word X, by the id of their word
+     */
+    @Override
+    public SparseRow get_sparse_row(int X) {
+
+        int[] idRows = this.idRows;
+
+        if(idRows == null) {
+
+            throw new IllegalStateException("No dictionary was given to look words up by id");
+        }
+
+        if(X < 0 || X >= idRows.length || idRows[X] < 0) {
+
+            return SparseRow.EMPTY;
+        }
+
+        int[] rowIds = this.rowIds;
+        int row = idRows[X];
+        long start = rowOffsets[row];
+        int[] ids = new int[get_row_length(row)];
+        double[] similarities = new double[ids.length];
+        for(int index = 0; index < ids.length; index++) {
+
+            ids[index] = rowIds[get_column(start + index)];
+            similarities[index] = get_value(start + index);
+        }
+
+        // our columns are in the order of our rows, which
+        // need not be the order of their ids
+        return SparseRow.sorted(ids, similarities);
+    }
+
+    /**
+     * @param term some word
+     * @return the row of the given word, or -1 if it has none
+     */
+    public int get_row(String term) {
+
+        return rows.get_id(term);
+    }
+
+    public String get_term(int row) {
+
+        return terms[row];
+    }
+
+    /**
+     * @param row some row of this matrix
+     * @return the number of entries of the given row
+     */
+    public int get_row_length(int row) {
+
+        return (int) (rowOffsets[row + 1] - rowOffsets[row]);
+    }
+
+    /**
+     * @param row some row of this matrix
+     * @return the index of the first entry of the given row,
+     * for get_column and get_value
+     */
+    public long get_row_start(int row) {
+
+        return rowOffsets[row];
+    }
+
+    public long get_entries() {
+
+        return rowOffsets[size];
+    }
+
+    public int get_size() {
+
+        return this.size;
+    }
+
+    /**
+     * Writes this matrix to the given file path, in the MatrixFile
+     * format, and our dissimilarities (if any) next to it
+     * @param filePath
+     * @throws IOException
+     */
+    public void save(String filePath) throws IOException {
+
+        save(this, filePath);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+
+        out.defaultWriteObject();
+
+        long entries = get_entries();
+        for(long entry = 0; entry < entries; entry++) {
+
+            out.writeInt(get_column(entry));
+            out.writeFloat(get_value(entry));
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+        in.defaultReadObject();
+
+        long entries = get_entries();
+        columns = new IntBuffer[segment_count(entries)];
+        values = new FloatBuffer[columns.length];
+        for(int segment = 0; segment < columns.length; segment++) {
+
+            int length = (int) Math.min(SEGMENT_ENTRIES, entries - ((long) segment << SEGMENT_SHIFT));
+            int[] columnArray = new int[length];
+            float[] valueArray = new float[length];
+            for(int entry = 0; entry < length; entry++) {
+
+                columnArray[entry] = in.readInt();
+                valueArray[entry] = in.readFloat();
+            }
+
+            columns[segment] = IntBuffer.wrap(columnArray);
+            values[segment] = FloatBuffer.wrap(valueArray);
+        }
+    }
+}
@@ -3,6 +3,7 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.TreeMap;
 
 public class DocumentStatistic {
@@ -13,6 +14,27 @@ public class DocumentStatistic {
     TreeMap<String, Integer> counts;
     Integer wordCount;
 
+    // if set, words are counted by their id in this dictionary
+    // rather than in `counts` (which only counts words without an id)
+    TermDictionary dictionary;
+
+    // the text we counted
+    String text;
+
+    // id of each word of the document, in order, -1 for words without one,
+    // and the number of occurrences of its id (zero for words without one)
+    int[] tokenIds;
+    int[] tokenCounts;
+
+    // p(word | document) of each word of the document, in order,
+    // made the first time it is asked for
+    double[] tokenDensities;
+
+    // the distinct ids of the document, sorted, and the
+    // number of occurrences of each
+    int[] countIds;
+    int[] idCounts;
+
     public DocumentStatistic(Document document, String fieldName) {
 
         counts = new TreeMap<>();
@@ -20,6 +42,20 @@ public class DocumentStatistic {
         set_field(fieldName);
     }
 
+    /**
+     * Counts the words of the document by their id in `dictionary`.
+     * The dictionary is only read, so it may be shared with scorers on
+     * other threads: words without an id are counted by String.
+     * @param document
+     * @param fieldName
+     * @param dictionary the dictionary of our embedding space
+     */
+    public DocumentStatistic(Document document, String fieldName, TermDictionary dictionary) {
+
+        this(document, fieldName);
+        this.dictionary = dictionary;
+    }
+
     public void set_document(Document document) {
 
         this.document = document;
@@ -34,6 +70,7 @@ public class DocumentStatistic {
     public void process_counts(Analyzer analyzer) throws IOException {
 
         String text = document.getField(fieldName).stringValue();
+        this.text = text;
 
         TokenStream tokenStream = analyzer.tokenStream(fieldName, text);
         CharTermAttribute attr = tokenStream.addAttribute(CharTermAttribute.class);
@@ -41,11 +78,27 @@ public class DocumentStatistic {
         tokenStream.reset();
 
         Integer wordCount = 0;
+        int[] ids = new int[64];
         // for each word
         while(tokenStream.incrementToken()) {
 
-            // increment the occurrences for this word
-            increment_count(attr.toString());
+            if(dictionary != null) {
+
+                if(wordCount == ids.length) {
+
+                    ids = Arrays.copyOf(ids, wordCount * 2);
+                }
+                ids[wordCount] = dictionary.get_id(attr.toString());
+
+                if(ids[wordCount] < 0) {
+
+                    increment_count(attr.toString());
+                }
+            } else {
+
+                // increment the occurrences for this word
+                increment_count(attr.toString());
+            }
 
             // increment the total document length
             wordCount++;
@@ -54,6 +107,67 @@ public class DocumentStatistic {
         tokenStream.close();
 
         this.wordCount = wordCount;
+
+        if(dictionary != null) {
+
+            count_ids(Arrays.copyOf(ids, wordCount));
+        }
+    }
+
+    /**
+     * Counts the occurrences of each of the given ids
+     * @param ids id of each word of the document
+     */
+    private void count_ids(int[] ids) {
+
+        tokenIds = ids;
+        tokenCounts = new int[ids.length];
+
+        // each id with the position of its word, sorted
+        long[] order = new long[ids.length];
+        for(int index = 0; index < ids.length; index++) {
+
+            order[index] = ((long) ids[index] << 32) | index;
+        }
+        Arrays.sort(order);
+
+        // words without an id come first, and are left out
+        int first = 0;
+        while(first < order.length && order[first] < 0) {
+
+            first++;
+        }
+
+        int distinct = 0;
+        countIds = new int[order.length];
+        idCounts = new int[order.length];
+        for(int index = first; index < order.length; index++) {
+
+            int id = (int) (order[index] >>> 32);
+            if(distinct > 0 && countIds[distinct - 1] == id) {
+
+                idCounts[distinct - 1]++;
+            } else {
+
+                countIds[distinct] = id;
+                idCounts[distinct] = 1;
+                distinct++;
+            }
+        }
+
+        // the occurrences of each id, given back to its words
+        int run = 0;
+        for(int index = first; index < order.length; index++) {
+
+            if(countIds[run] != (int) (order[index] >>> 32)) {
+
+                run++;
+            }
+            tokenCounts[(int) order[index]] = idCounts[run];
+        }
+
+        countIds = Arrays.copyOf(countIds, distinct);
+        idCounts = Arrays.copyOf(idCounts, distinct);
     }
 
     /**
@@ -64,6 +178,15 @@ public class DocumentStatistic {
      */
     public Integer get_count(String word) {
 
+        if(dictionary != null) {
+
+            int id = dictionary.get_id(word);
+            if(id >= 0) {
+
+                return get_count(id);
+            }
+        }
+
         // if no entry, return zero
         if(counts.containsKey(word)) {
 
@@ -74,6 +197,93 @@ public class DocumentStatistic {
         }
     }
 
+    /**
+     *
+     * @param id id of some word in our dictionary
+     * @return the number of times the word of the given
+     * id occurs in the document
+     */
+    public int get_count(int id) {
+
+        int index = Arrays.binarySearch(countIds, id);
+        if(index >= 0) {
+
+            return idCounts[index];
+        }
+
+        // a word given its id after we counted was counted by String
+        if(!counts.isEmpty() && id >= 0 && id < dictionary.get_size()) {
+
+            Integer count = counts.get(dictionary.get_term(id));
+            return count != null ? count : 0;
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the id of each word of the document, in order,
+     * if words are counted by id
+     */
+    public int[] get_token_ids() {
+
+        return this.tokenIds;
+    }
+
+    /**
+     * @return the number of occurrences of the id of each word of the
+     * document, in order (zero for words without one), if words are
+     * counted by id
+     */
+    public int[] get_token_counts() {
+
+        return this.tokenCounts;
+    }
+
+    /**
+     * @return p(word | document) of each word of the document, in
+     * order, if words are counted by id
+     */
+    public double[] get_token_densities() {
+
+        if(tokenDensities == null && tokenCounts != null) {
+
+            double[] densities = new double[tokenCounts.length];
+            for(int index = 0; index < densities.length; index++) {
+
+                densities[index] = tokenCounts[index] / wordCount.doubleValue();
+            }
+            tokenDensities = densities;
+        }
+
+        return this.tokenDensities;
+    }
+
+    /**
+     * @return the distinct ids of the document, sorted, if words
+     * are counted by id
+     */
+    public int[] get_count_ids() {
+
+        return this.countIds;
+    }
+
+    /**
+     * @return the number of occurrences of each id of get_count_ids
+     */
+    public int[] get_id_counts() {
+
+        return this.idCounts;
+    }
+
+    /**
+     * @return the text of the document we counted
+     */
+    public String get_text() {
+
+        return this.text;
+    }
+
     /**
      * Increment the occurrences in the document
      * for the given word
@@ -0,0 +1,268 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact binary on-disk format for an EmbeddingSpace, designed to be
+ * memory mapped. All values are little-endian. The layout is:
+ *
+ *   int   magic (MAGIC)
+ *   int   version (VERSION)
+ *   int   number of words
+ *   int   number of dimensions
+ *   long  position of the vectors
+ *   long  position of the term table
+ *   int   flags (FLAG_NORMALIZED if every vector has unit length)
+ *   ...   padding up to HEADER_SIZE bytes
+ *   float vectors, one row of `dimensions` floats per word
+ *   term table, for each row: int length, then the word in UTF-8
+ *
+ * The vectors are mapped read-only and are never copied into the heap,
+ * so opening a file only costs reading its term table, and several
+ * processes opening the same file share it through the page cache.
+ * Vectors are mapped in segments of rows (see VectorSlab.segment_shift),
+ * so files of any size map.
+ */
+public class EmbeddingFile {
+
+    public static final int MAGIC = 0x454D4246;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int FLAG_NORMALIZED = 1;
+
+    // extension of the binary file we look for next to a text file
+    public static final String EXTENSION = "_vectors.bin";
+
+    /**
+     * Writes the given slab to `filePath` in the binary format
+     * @param slab the vectors we will write
+     * @param filePath location of the new file
+     * @throws IOException
+     */
+    public static void write(VectorSlab slab, String filePath) throws IOException {
+
+        int size = slab.get_size();
+        int dimensions = slab.get_dimensions();
+        long vectorsOffset = HEADER_SIZE;
+        long termsOffset = vectorsOffset + 4L * size * dimensions;
+
+        FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        try {
+
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+            // header
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(size);
+            buffer.putInt(dimensions);
+            buffer.putLong(vectorsOffset);
+            buffer.putLong(termsOffset);
+            buffer.putInt(slab.is_normalized() ? FLAG_NORMALIZED : 0);
+            buffer.position(HEADER_SIZE);
+
+            // vectors
+            for(int row = 0; row < size; row++) {
+
+                for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                    if(buffer.remaining() < 4) {
+
+                        flush(channel, buffer);
+                    }
+
+                    buffer.putFloat(slab.get(row, dimension));
+                }
+            }
+
+            // term table
+            for(int row = 0; row < size; row++) {
+
+                byte[] term = slab.get_term(row).getBytes(StandardCharsets.UTF_8);
+
+                if(buffer.remaining() < 4 + term.length) {
+
+                    flush(channel, buffer);
+                }
+
+                if(buffer.remaining() < 4 + term.length) {
+
+                    // a very long word, give it a buffer of its own
+                    ByteBuffer large = ByteBuffer.allocate(4 + term.length).order(ByteOrder.LITTLE_ENDIAN);
+                    large.putInt(term.length);
+                    large.put(term);
+                    flush(channel, large);
+                } else {
+
+                    buffer.putInt(term.length);
+                    buffer.put(term);
+                }
+            }
+
+            flush(channel, buffer);
+        } finally {
+
+            channel.close();
+        }
+    }
+
+    /**
+     * Maps the binary file at `filePath` read-only into memory
+     * @param filePath location of a file written by `write`
+     * @return a slab whose vectors are read directly from the mapped file
+     * @throws IOException if the file is not in our format
+     */
+    public static VectorSlab map(String filePath) throws IOException {
+
+        FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+
+        try {
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            read_fully(channel, header, 0);
+            header.flip();
+
+            if(header.getInt() != MAGIC) {
+
+                throw new IOException(filePath + " is not a binary embedding file");
+            }
+
+            int version = header.getInt();
+            if(version != VERSION) {
+
+                throw new IOException("Unsupported embedding file version " + version);
+            }
+
+            int size = header.getInt();
+            int dimensions = header.getInt();
+            long vectorsOffset = header.getLong();
+            long termsOffset = header.getLong();
+            int flags = header.getInt();
+
+            // each segment holds 2^shift rows (but the last)
+            int shift = VectorSlab.segment_shift(dimensions);
+            int segmentCount = size == 0 ? 1 : (int) (((long) size + (1L << shift) - 1) >>> shift);
+
+            FloatBuffer[] segments = new FloatBuffer[segmentCount];
+            for(int segment = 0; segment < segmentCount; segment++) {
+
+                long firstRow = (long) segment << shift;
+                long rows = Math.min(1L << shift, size - firstRow);
+
+                MappedByteBuffer vectors = channel.map(FileChannel.MapMode.READ_ONLY,
+                        vectorsOffset + 4L * firstRow * dimensions, 4L * rows * dimensions);
+                segments[segment] = vectors.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+
+            // the term table is read once, so it is streamed rather than mapped
+            channel.position(termsOffset);
+            DataInputStream termTable = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel), 1 << 16));
+
+            String[] terms = new String[size];
+            byte[] bytes = new byte[64];
+            for(int row = 0; row < size; row++) {
+
+                int length = Integer.reverseBytes(termTable.readInt());
+                if(length > bytes.length) {
+
+                    bytes = new byte[length];
+                }
+
+                termTable.readFully(bytes, 0, length);
+                terms[row] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+
+            VectorSlab result = new VectorSlab(terms, new TermDictionary(terms),
+                    segments, shift, dimensions);
+            result.normalized = (flags & FLAG_NORMALIZED) != 0;
+            return result;
+        } finally {
+
+            // mappings stay valid after their channel is closed
+            channel.close();
+        }
+    }
+
+    /**
+     * @param filePath some file
+     * @return true if the given file exists and starts with
+     * the magic number of our binary format
+     */
+    public static boolean is_binary(String filePath) {
+
+        File f = new File(filePath);
+
+        if(!f.isFile() || f.length() < HEADER_SIZE) {
+
+            return false;
+        }
+
+        try {
+
+            DataInputStream in = new DataInputStream(new FileInputStream(f));
+            int magic = Integer.reverseBytes(in.readInt());
+            in.close();
+
+            return magic == MAGIC;
+        } catch(IOException e) {
+
+            return false;
+        }
+    }
+
+    /**
+     * Converts word embeddings in the word2vec text format
+     * into our binary format
+     * @param textPath location of the text embeddings
+     * @param binaryPath location of the new binary file
+     * @throws IOException
+     */
+    public static void convert(String textPath, String binaryPath) throws IOException {
+
+        EmbeddingSpace space = new EmbeddingSpace(textPath);
+        write(space.get_slab(), binaryPath);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void read_fully(FileChannel channel, ByteBuffer buffer,
+                                   long position) throws IOException {
+
+        while(buffer.hasRemaining()) {
+
+            int read = channel.read(buffer, position);
+            if(read < 0) {
+
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * args[0] : path to word embeddings in the text format
+     * args[1] : path of the binary file we will write
+     */
+    public static void main(String[] args) throws IOException {
+
+        convert(args[0], args[1]);
+    }
+}
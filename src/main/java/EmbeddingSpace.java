@@ -1,10 +1,29 @@
 
+import info.debatty.java.lsh.LSHSuperBit;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class EmbeddingSpace implements Serializable {
 
-    HashMap<String, WordVector> vectors;
+    // every vector of this space, stored contiguously
+    VectorSlab slab;
+
+    // lightweight views over the rows of `slab`, created on first use,
+    // and dropped (set to null) when the tables they carry change
+    transient volatile WordVector[] views;
+
+    // locality sensitive hash of every row, if it has been computed
+    transient volatile LocalityHashTable hashTable;
+
+    // bit signature of every row, if it has been computed
+    transient volatile BitSignatureTable signatureTable;
+
+    // size of the bit signatures built when none have been asked for
+    public static final int DEFAULT_SIGNATURE_BITS = 256;
+
     int dimensions;
     int size;
 
@@ -17,88 +36,92 @@ public class EmbeddingSpace implements Serializable {
      * @return TranslationMatrix with at most `maxEntries` entries in each
      * row/column.
      */
-    public TranslationMatrix generate_matrix_max_entries(int maxEntries) {
-
-        // initialize our translation matrix
-        TranslationMatrix result = new TranslationMatrix();
+    public CsrTranslationMatrix generate_matrix_max_entries(int maxEntries) {
 
-        // initialize each entry of the matrix
-        Iterator entryIterator = vectors.entrySet().iterator();
-
-        while(entryIterator.hasNext()) {
+        // rows are compared block by block on every processor, each
+        // row keeping its `maxEntries` highest similarities in a heap
+        return new BlockedSimilarityBuilder(slab).build_top_entries(maxEntries);
+    }
 
-            Map.Entry entry = (Map.Entry) entryIterator.next();
-            result.init_entry((String) entry.getKey());
-        }
+    /**
+     * Constructs TranslationMatrix from this embedding space, like
+     * generate_matrix_max_entries(int), but finding the neighbours of
+     * each word with an approximate nearest neighbour index instead of
+     * comparing it with every other word
+     * @param maxEntries the number of entries we record for each word
+     * @param index nearest neighbour index built over this space
+     * @return a translation matrix holding (approximately) the `maxEntries`
+     * highest similarities of each word
+     */
+    public CsrTranslationMatrix generate_matrix_max_entries(final int maxEntries, final HnswIndex index) {
 
-        // now we must re-iterate through each word embedding and compare
-        // it with each other vector
+        final int rowCount = slab.get_size();
 
-        Double similarity;
-        Map.Entry entryA, entryB;
-        WordVector vecA, vecB;
-        Object[] entries = vectors.entrySet().toArray();
+        // every word of the space gets a row, its own
+        String[] terms = new String[rowCount];
+        for(int row = 0; row < rowCount; row++) {
 
-        int innerIndex;
+            terms[row] = slab.get_term(row);
+        }
 
-        // for each row, we must determine a distribution of similarities
-        // we can only record `maxEntries` similarities for each row
-        // therefore, for each row, we will calculate all similarities
-        // and then at the end take the `maxEntries` highest
+        final TranslationMatrixBuilder result = new TranslationMatrixBuilder(terms);
 
-        // temporary distribution of similarities
-        TreeMap<Double, String> distribution;
+        // rows are searched in chunks on every processor, each chunk
+        // adding its pairs to the builder in one batch
+        final int chunkSize = 1000;
+        ForkJoinPool pool = new ForkJoinPool();
+        ArrayList<ForkJoinTask<?>> chunks = new ArrayList<>();
 
-        for(int outerIndex = 0; outerIndex < entries.length;
-            outerIndex++) {
+        try {
 
-            // initialize distribution for this word
-            distribution = new TreeMap<>();
+            for(int chunkStart = 0; chunkStart < rowCount; chunkStart += chunkSize) {
 
-            if(outerIndex % 100 == 0) {
+                final int rowStart = chunkStart;
+                final int rowEnd = Math.min(rowCount, chunkStart + chunkSize);
 
-                double percent = (outerIndex / 94000.00) * 100.00;
-                System.out.print("Progress: ");
-                System.out.print(percent);
-                System.out.println("%");
-            }
+                chunks.add(pool.submit(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
 
-            // obtain our first vector
-            entryA = (Map.Entry) entries[outerIndex];
-            vecA = (WordVector) entryA.getValue();
+                        int[] rows = new int[(rowEnd - rowStart) * maxEntries];
+                        int[] columns = new int[rows.length];
+                        double[] similarities = new double[rows.length];
+                        int count = 0;
 
-            for(innerIndex = 0; innerIndex < entries.length;
-                innerIndex++) {
+                        for(int row = rowStart; row < rowEnd; row++) {
 
-                // obtain our first vector
-                entryB = (Map.Entry) entries[innerIndex];
-                vecB = (WordVector) entryB.getValue();
+                            for(Neighbor neighbor : index.nearest(get_vector(row), maxEntries)) {
 
-                similarity = WordVector.cosine_similarity(vecA, vecB, 0.0);
+                                // negative similarities are recorded as zero,
+                                // as in cosine_similarity with a tolerance of zero
+                                rows[count] = row;
+                                columns[count] = neighbor.get_row();
+                                similarities[count] = Math.max(0.0, neighbor.get_similarity());
+                                count++;
+                            }
+                        }
 
-                // add to temporary distribution
-                distribution.put(similarity, vecB.term);
+                        // pairs are recorded in both directions
+                        result.put_all(rows, columns, similarities, count);
+                    }
+                }));
             }
 
-            // we now have a full distribution for one word
-            // (that is, one row in our matrix)
-            // get out the top entries
-            Map.Entry<Double, String> nextEntry;
-            for(int entryIndex = 0; entryIndex < maxEntries;
-                entryIndex++) {
-
-                // get the first entry
-                nextEntry = distribution.pollLastEntry();
+            for(int chunk = 0; chunk < chunks.size(); chunk++) {
 
-                // add it to our result
-                result.put(vecA.get_term(), nextEntry.getValue(), nextEntry.getKey());
-                result.put(nextEntry.getValue(), vecA.get_term(), nextEntry.getKey());
+                chunks.get(chunk).join();
 
+                double percent = (Math.min(rowCount, (chunk + 1) * chunkSize) / (double) rowCount) * 100.00;
+                System.out.print("Progress: ");
+                System.out.print(percent);
+                System.out.println("%");
             }
-        }
+        } finally {
 
+            pool.shutdown();
+        }
 
-        return result;
+        return result.freeze();
     }
 
     /**
@@ -110,143 +133,331 @@ public class EmbeddingSpace implements Serializable {
      * @return a translation matrix only storing similarities that are
      * greater than or equal to the given `minSimilarity`
      */
-    public TranslationMatrix generate_matrix_min_similarity(Double minSimilarity) {
+    public CsrTranslationMatrix generate_matrix_min_similarity(Double minSimilarity) {
+
+        // pairs are compared block by block on every processor,
+        // skipping those that cannot reach `minSimilarity`
+        return new AllPairsSimilarityBuilder(slab).build(minSimilarity);
+    }
+
+    /**
+     *
+     * @return full translation matrix with no restrictions
+     * ... this will be very big (good luck having enough heap space)
+     */
+    public CsrTranslationMatrix generate_matrix() {
+
+        return new BlockedSimilarityBuilder(slab).build(Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Constructs a matrix of the most dissimilar words of this space:
+     * the similarity of each word with the opposite (inverse) of another,
+     * which is how negated query terms are compared, only recording those
+     * greater than or equal to the given minimum similarity. Given to
+     * SimilarityMatrix.set_dissimilarities, it lets the scorer read the
+     * similarities of negated terms rather than compute them.
+     * @param minSimilarity the lowest similarity we will record... the
+     *                      tolerance of the scorer records exactly what
+     *                      it would compute
+     * @return a translation matrix of the similarities of each word
+     * with the inverse of the others
+     */
+    public CsrTranslationMatrix generate_dissimilarity_matrix_min_similarity(Double minSimilarity) {
+
+        return new BlockedSimilarityBuilder(slab).set_negated(true).build(minSimilarity);
+    }
+
+    /**
+     * Like generate_dissimilarity_matrix_min_similarity(Double), but
+     * recording the `maxEntries` most dissimilar words of each word
+     * @param maxEntries the number of entries we record for each word
+     * @return a translation matrix of the similarities of each word
+     * with the inverse of the others
+     */
+    public CsrTranslationMatrix generate_dissimilarity_matrix_max_entries(int maxEntries) {
+
+        return new BlockedSimilarityBuilder(slab).set_negated(true).build_top_entries(maxEntries);
+    }
+
+    /**
+     * Like generate_matrix_min_similarity(Double), but writes the matrix
+     * to disk as it goes rather than holding it in memory (see
+     * ShardedMatrixBuilder). Finished rows are kept in shard files until
+     * they are merged into one matrix file, so a build that was
+     * interrupted resumes where it stopped when called again.
+     * @param minSimilarity the lowest similarity we will record
+     * @param filePath location of the matrix file we will write,
+     *                 which SimilarityMatrix.read can load
+     * @throws IOException
+     */
+    public void generate_matrix_min_similarity(Double minSimilarity, String filePath) throws IOException {
 
-        // initialize our translation matrix
-        TranslationMatrix result = new TranslationMatrix();
+        generate_matrix_min_similarity(minSimilarity, filePath, 0);
+    }
+
+    /**
+     * Like generate_matrix_min_similarity(Double, String), with shards
+     * of the given size
+     * @param rowsPerShard the number of rows built at a time, or 0 to
+     *                     size shards from the memory left in the heap
+     * @throws IOException
+     */
+    public void generate_matrix_min_similarity(Double minSimilarity, String filePath,
+                                               int rowsPerShard) throws IOException {
 
-        // initialize each entry of the matrix
-        Iterator entryIterator = vectors.entrySet().iterator();
+        new ShardedMatrixBuilder(slab, rowsPerShard, Runtime.getRuntime().availableProcessors())
+                .build(minSimilarity, filePath);
+    }
 
-        while(entryIterator.hasNext()) {
+    /**
+     * Like generate_matrix(), but writes the matrix to disk as it goes
+     * rather than holding it in memory (see generate_matrix_min_similarity)
+     * @param filePath location of the matrix file we will write
+     * @throws IOException
+     */
+    public void generate_matrix(String filePath) throws IOException {
 
-            Map.Entry entry = (Map.Entry) entryIterator.next();
-            result.init_entry((String) entry.getKey());
+        generate_matrix(filePath, 0);
+    }
+
+    /**
+     * Like generate_matrix(String), with shards of the given size
+     * @param rowsPerShard the number of rows built at a time, or 0 to
+     *                     size shards from the memory left in the heap
+     * @throws IOException
+     */
+    public void generate_matrix(String filePath, int rowsPerShard) throws IOException {
+
+        generate_matrix_min_similarity(Double.NEGATIVE_INFINITY, filePath, rowsPerShard);
+    }
+
+    /**
+     *
+     * @param term the word we want the representation of
+     * @return the vector representation of the given word
+     */
+    public WordVector get_vector(String term) {
+
+        int row = slab.get_row(term);
+
+        if(row < 0) {
+
+            return null;
         }
 
-        // now we must re-iterate through each word embedding and compare
-        // it with each other vector
+        return get_vector(row);
+    }
 
-        Double similarity;
-        Map.Entry entryA, entryB;
-        WordVector vecA, vecB;
-        Object[] entries = vectors.entrySet().toArray();
+    /**
+     * @return the dictionary of this space, in which the id of each
+     * word with a vector is its row
+     */
+    public TermDictionary get_dictionary() {
 
-        int innerIndex;
+        return slab.get_dictionary();
+    }
 
-        for(int outerIndex = 0; outerIndex < entries.length;
-            outerIndex++) {
+    /**
+     * @param id some id of our dictionary
+     * @return true if the word of the given id has a vector
+     * in this space (its id is then its row)
+     */
+    public boolean has_vector(int id) {
 
-            if(outerIndex % 100 == 0) {
+        return id >= 0 && id < size;
+    }
 
-                double percent = (outerIndex / 94000.00) * 100.00;
-                System.out.print("Progress: ");
-                System.out.print(percent);
-                System.out.println("%");
-            }
+    /**
+     *
+     * @param row some row of this space
+     * @return the vector stored at the given row, which
+     * reads its contents directly from our slab
+     */
+    public WordVector get_vector(int row) {
 
-            // obtain our first vector
-            entryA = (Map.Entry) entries[outerIndex];
-            vecA = (WordVector) entryA.getValue();
+        // read once, as building a table drops the views meanwhile
+        WordVector[] views = this.views;
+        if(views == null) {
 
-            for(innerIndex = outerIndex; innerIndex < entries.length;
-                innerIndex++) {
+            views = create_views();
+        }
 
-                // obtain our first vector
-                entryB = (Map.Entry) entries[innerIndex];
-                vecB = (WordVector) entryB.getValue();
+        WordVector view = views[row];
 
-                similarity = WordVector.cosine_similarity(vecA, vecB, 0.0);
+        if(view == null) {
 
-                // only record this entry if similarity is greater
-                // than or equal to `minSimilarity`
-                if(similarity >= minSimilarity) {
-                    result.put(vecA.get_term(), vecB.get_term(), similarity);
-                    result.put(vecB.get_term(), vecA.get_term(), similarity);
-                }
+            if(slab instanceof QuantizedSlab) {
+
+                view = new WordVector(slab.get_term(row), (QuantizedSlab) slab, row);
+            } else {
+
+                view = new WordVector(slab.get_term(row), slab.get_data(row),
+                        slab.get_offset(row), slab.get_dimensions());
+            }
+            view.set_norm(slab.get_norm(row));
+
+            LocalityHashTable hashTable = this.hashTable;
+            if(hashTable != null) {
+
+                view.set_locality_hash(hashTable.get_hash(row));
+            }
+
+            BitSignatureTable signatureTable = this.signatureTable;
+            if(signatureTable != null) {
+
+                view.set_bit_signature(signatureTable.get_signature(row));
             }
+
+            views[row] = view;
         }
 
+        return view;
+    }
 
-        return result;
+    /**
+     * @return our views, created if they were dropped... under the lock
+     * tables are built with, so views made before a table was built are
+     * never kept past it
+     */
+    private synchronized WordVector[] create_views() {
+
+        WordVector[] views = this.views;
+        if(views == null) {
+
+            views = new WordVector[slab.get_size()];
+            this.views = views;
+        }
+
+        return views;
     }
 
     /**
-     *
-     * @return full translation matrix with no restrictions
-     * ... this will be very big (good luck having enough heap space)
+     * Scales every vector of this space to unit length, so that cosine
+     * similarities become plain dot products. Similarities between words
+     * are unchanged (up to float rounding), but note that phrase vectors
+     * (see Phrase) will then be sums of unit vectors rather than sums of
+     * the original vectors.
      */
-    public TranslationMatrix generate_matrix() {
+    public void normalize() {
 
-        // initialize our translation matrix
-        TranslationMatrix result = new TranslationMatrix();
+        set_slab(slab.normalize());
+    }
 
-        // initialize each entry of the matrix
-        Iterator entryIterator = vectors.entrySet().iterator();
+    /**
+     * @param type the quantized representation we will use
+     * @return a copy of this space whose vectors are quantized
+     * (see QuantizedSlab), sharing this space's term index. Similarities
+     * in the copy are computed on the quantized vectors.
+     */
+    public EmbeddingSpace quantize(QuantizedSlab.Type type) {
 
-        while(entryIterator.hasNext()) {
+        return new EmbeddingSpace(QuantizedSlab.quantize(slab, type));
+    }
 
-            Map.Entry entry = (Map.Entry) entryIterator.next();
-            result.init_entry((String) entry.getKey());
+    /**
+     * Computes the locality sensitive hash of every word of this space
+     * once, so that WordVector.compare_hash never hashes our words again.
+     * Does nothing if the table for `lsh` has already been built.
+     * @param lsh the Locality Sensitive Hashing object we will use
+     */
+    public void build_hash_table(LSHSuperBit lsh) {
+
+        LocalityHashTable hashTable = this.hashTable;
+        if(hashTable != null && hashTable.is_for(lsh)) {
+
+            return;
         }
 
-        // now we must re-iterate through each word embedding and compare
-        // it with each other vector
+        rebuild_hash_table(lsh);
+    }
 
-        Double similarity;
-        Map.Entry entryA, entryB;
-        WordVector vecA, vecB;
-        Object[] entries = vectors.entrySet().toArray();
+    private synchronized void rebuild_hash_table(LSHSuperBit lsh) {
 
-        int innerIndex;
+        if(hashTable != null && hashTable.is_for(lsh)) {
 
-        for(int outerIndex = 0; outerIndex < entries.length;
-            outerIndex++) {
+            return;
+        }
 
-            if(outerIndex % 100 == 0) {
+        hashTable = new LocalityHashTable(slab, lsh);
 
-                double percent = (outerIndex / 94000.00) * 100.00;
-                System.out.print("Progress: ");
-                System.out.print(percent);
-                System.out.println("%");
-            }
+        // views are recreated with their row of the table
+        views = null;
+    }
 
-            // obtain our first vector
-            entryA = (Map.Entry) entries[outerIndex];
-            vecA = (WordVector) entryA.getValue();
+    public LocalityHashTable get_hash_table() {
 
-            for(innerIndex = outerIndex; innerIndex < entries.length;
-                innerIndex++) {
+        return this.hashTable;
+    }
 
-                // obtain our first vector
-                entryB = (Map.Entry) entries[innerIndex];
-                vecB = (WordVector) entryB.getValue();
+    /**
+     * Computes the SuperBit bit signature of every word of this space,
+     * used to estimate cosine similarities from Hamming distances
+     * @param bits the number of bits of each signature
+     * @param seed seed of the random hyperplanes
+     */
+    public synchronized void build_signature_table(int bits, long seed) {
 
-                similarity = WordVector.cosine_similarity(vecA, vecB, 0.0);
+        signatureTable = new BitSignatureTable(slab, bits, seed);
 
-                result.put(vecA.get_term(), vecB.get_term(), similarity);
-                result.put(vecB.get_term(), vecA.get_term(), similarity);
+        // views are recreated with their row of the table
+        views = null;
+    }
 
+    /**
+     * @return the bit signatures of this space, which are built
+     * with DEFAULT_SIGNATURE_BITS bits if they do not exist yet
+     */
+    public BitSignatureTable get_signature_table() {
+
+        BitSignatureTable signatureTable = this.signatureTable;
+        if(signatureTable == null) {
+
+            synchronized(this) {
+
+                signatureTable = this.signatureTable;
+                if(signatureTable == null) {
+
+                    build_signature_table(DEFAULT_SIGNATURE_BITS, 42);
+                    signatureTable = this.signatureTable;
+                }
             }
         }
 
-        return result;
+        return signatureTable;
+    }
+
+    public VectorSlab get_slab() {
+
+        return this.slab;
     }
 
     /**
-     *
-     * @param term the word we want the representation of
-     * @return the vector representation of the given word
+     * Replaces the vectors of this space with those of the given slab
+     * @param slab
      */
-    public WordVector get_vector(String term) {
-
-        return vectors.get(term);
+    public void set_slab(VectorSlab slab) {
+
+        this.slab = slab;
+        this.views = null;
+        this.hashTable = null;
+        this.signatureTable = null;
+        set_dimensions(slab.get_dimensions());
+        set_size(slab.get_size());
     }
 
     public EmbeddingSpace() {
 
-        vectors = new HashMap<>();
-        dimensions = 0;
+        set_slab(new VectorSlab(new String[0], new float[0], 0));
+    }
+
+    /**
+     * Construct embedding space from the given slab of vectors
+     * @param slab
+     */
+    public EmbeddingSpace(VectorSlab slab) {
+
+        set_slab(slab);
     }
 
     /**
@@ -256,10 +467,21 @@ public class EmbeddingSpace implements Serializable {
      */
     public EmbeddingSpace(String filePath) throws IOException {
 
-        vectors = new HashMap<>();
         load_model(filePath);
     }
 
+    /**
+     * Construct embedding space from the vectors in file of
+     * the given words only
+     * @param filePath
+     * @param vocabulary the words we will keep
+     * @throws IOException
+     */
+    public EmbeddingSpace(String filePath, Set<String> vocabulary) throws IOException {
+
+        load_model(filePath, vocabulary);
+    }
+
     /**
      *
      * @param word1
@@ -278,71 +500,48 @@ public class EmbeddingSpace implements Serializable {
 
     /**
      * Loads embeddings from given file path into this EmbeddingSpace.
-     * After being successfully called, the `vectors` member variable
+     * After being successfully called, the `slab` member variable
      * will contain word embeddings for all words in given corpus.
      * The `dimensions` member variable will store the dimensionality of
      * our space, and the `size` member variable will store the size
      * of our given corpus.
+     * If the file is in the binary format of EmbeddingFile, or such a
+     * file exists next to it (at `filePath` + EmbeddingFile.EXTENSION),
+     * the vectors are memory mapped rather than parsed.
      * @param filePath the filePath where we will look for embeddings
      * @throws IOException
      */
     public void load_model(String filePath) throws IOException {
 
-        File f = new File(filePath+"_matrix.ser");
-
-        if(f.exists()) {
-            /* load the matrix that has been serialised to disk */
-            System.out.println("Loading matrix from file");
-            //this.readW2VSerialised(f.getAbsolutePath());
-            //TODO: to replace with appropriate method
-        } else {
-
-
-            BufferedReader br = new BufferedReader(new FileReader(filePath));
-            String line = null;
-            int count = 0;
-            int numberofdimensions = 0;
-            int foundterms = 0;
-            while ((line = br.readLine()) != null) {
-
-                if(count == 0) {
-                    //this is the first line: it says how many words and how many dimensions
-                    String[] input = line.split(" ");
-                    numberofdimensions = Integer.parseInt(input[1]);
-                    count++;
-                    continue;
-                }
-
-                String[] input = line.split(" ");
-                String term = input[0];
-
-                // create a new vector for this word
-                WordVector newVector = new WordVector();
-
-                foundterms++;
-                int dimension = 0;
-                Double[] vector = new Double[numberofdimensions];
-
-                for(int i = 1; i < input.length; i++) {
+        load_model(filePath, null);
+    }
 
-                    vector[dimension] = Double.parseDouble(input[i]);
-                    dimension++;
-                }
+    /**
+     * Like load_model(String), but only keeps the vectors of the words
+     * of `vocabulary` (see IndexVocabulary). Text embeddings are parsed
+     * for those words only, mapped binary embeddings are copied into a
+     * smaller heap slab.
+     * @param filePath the filePath where we will look for embeddings
+     * @param vocabulary the words we will keep, or null to keep every word
+     * @throws IOException
+     */
+    public void load_model(String filePath, Set<String> vocabulary) throws IOException {
 
-                set_dimensions(dimension);
-                newVector.set_dimensions(dimension);
+        File f = new File(filePath + EmbeddingFile.EXTENSION);
 
-                newVector.set_term(term);
-                newVector.set_contents(vector);
-                vectors.put(term, newVector);
+        if(EmbeddingFile.is_binary(filePath) || f.exists()) {
 
-                count++;
-            }
+            /* map the binary version of these embeddings */
+            System.out.println("Mapping embeddings from binary file");
+            VectorSlab mapped = EmbeddingFile.map(EmbeddingFile.is_binary(filePath)
+                    ? filePath : f.getAbsolutePath());
 
-            set_size(count);
+            set_slab(vocabulary == null ? mapped : mapped.select(vocabulary));
+        } else {
 
-            System.out.println("Terms founds in word2vec: " + foundterms);
-            br.close();
+            // parse the text embeddings on all our processors
+            set_slab(ParallelEmbeddingLoader.load(filePath,
+                    Runtime.getRuntime().availableProcessors(), vocabulary));
         }
     }
 
@@ -367,40 +566,27 @@ public class EmbeddingSpace implements Serializable {
     }
 
     /**
-     * Serializes this object to given path
+     * Writes this embedding space to given path, in the
+     * binary format of EmbeddingFile
      * @param filePath location where we will save
+     * @throws IOException
      */
-    public void save(String filePath) {
+    public void save(String filePath) throws IOException {
 
-        try {
-
-            FileOutputStream fos=new FileOutputStream(filePath);
-            ObjectOutputStream oos=new ObjectOutputStream(fos);
-
-            oos.writeObject(this);
-            oos.flush();
-            oos.close();
-            fos.close();
-        } catch(Exception e) {}
+        EmbeddingFile.write(slab, filePath);
     }
 
     /**
-     * Attempts to read and return an Embedding space serialized
-     * at the given filePath
-     * @param filePath location of EmbeddingSpace object
+     * Opens an Embedding space saved at the given filePath.
+     * The vectors are memory mapped, not read into the heap.
+     * @param filePath location of EmbeddingSpace file
      * @return the EmbeddingSpace object read from file
+     * @throws IOException
      */
-    public static EmbeddingSpace read(String filePath) {
+    public static EmbeddingSpace read(String filePath) throws IOException {
 
         System.out.println("Loading embedding space from file...");
-        EmbeddingSpace spaceInFile = new EmbeddingSpace();
-        try {
-            FileInputStream fis = new FileInputStream(filePath);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            spaceInFile = (EmbeddingSpace) ois.readObject();
-            ois.close();
-            fis.close();
-        } catch(Exception e) {}
+        EmbeddingSpace spaceInFile = new EmbeddingSpace(EmbeddingFile.map(filePath));
 
         System.out.println("Embedding space loaded.");
         return spaceInFile;
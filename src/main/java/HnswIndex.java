@@ -0,0 +1,447 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Approximate nearest neighbour index over the vectors of an
+ * EmbeddingSpace, using a Hierarchical Navigable Small World graph
+ * (Malkov and Yashunin, 2016). Similarity is cosine similarity.
+ *
+ * Every word is a node of a layered graph: all nodes are in layer 0,
+ * and exponentially fewer in each layer above. A search walks greedily
+ * down from the top layer, then explores layer 0 keeping the `ef` best
+ * nodes seen. Building the index inserts words one by one with the
+ * same search, so it takes close to O(V log V) similarity computations
+ * instead of the O(V^2) of a brute force comparison.
+ *
+ * Building is single-threaded, searches may run concurrently.
+ */
+public class HnswIndex {
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 64;
+
+    EmbeddingSpace space;
+    VectorSlab slab;
+
+    // number of links of each node in the upper layers (twice
+    // as many in layer 0), and size of the search when inserting
+    int m;
+    int efConstruction;
+    int efSearch;
+    double levelMultiplier;
+
+    // links[node][level] holds the number of links of the node in that
+    // layer, followed by the linked nodes
+    int[][][] links;
+
+    int entryPoint = -1;
+    int maxLevel = -1;
+
+    Random random;
+
+    // marks of the nodes visited by the search of each thread
+    ThreadLocal<VisitedSet> visited = new ThreadLocal<VisitedSet>() {
+        @Override
+        protected VisitedSet initialValue() {
+            return new VisitedSet(slab.get_size());
+        }
+    };
+
+    /**
+     * Builds an index over every word of the given space,
+     * with default parameters
+     * @param space
+     */
+    public HnswIndex(EmbeddingSpace space) {
+
+        this(space, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, 42);
+    }
+
+    /**
+     * Builds an index over every word of the given space
+     * @param space the embedding space we will index
+     * @param m number of links of each node... higher values give
+     *          better recall, at the cost of memory and build time
+     * @param efConstruction size of the search when inserting a word...
+     *                       higher values give a better graph, slower
+     * @param seed seed for choosing the layers of each word
+     */
+    public HnswIndex(EmbeddingSpace space, int m, int efConstruction, long seed) {
+
+        this.space = space;
+        this.slab = space.get_slab();
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = DEFAULT_EF_SEARCH;
+        this.levelMultiplier = 1.0 / Math.log(m);
+        this.random = new Random(seed);
+        this.links = new int[slab.get_size()][][];
+
+        for(int node = 0; node < slab.get_size(); node++) {
+
+            if(node % 10000 == 0) {
+
+                double percent = (node / (double) slab.get_size()) * 100.00;
+                System.out.print("Indexing: ");
+                System.out.print(percent);
+                System.out.println("%");
+            }
+
+            insert(node);
+        }
+    }
+
+    /**
+     * Sets the size of the searches done by `nearest`... higher
+     * values give better recall, slower
+     * @param efSearch
+     */
+    public void set_ef_search(int efSearch) {
+
+        this.efSearch = efSearch;
+    }
+
+    /**
+     * @param term some word of our space
+     * @param k the number of neighbours we want
+     * @return (approximately) the `k` words most similar to the given word,
+     * most similar first. The word itself is included. Empty if the
+     * word is not in our space.
+     */
+    public List<Neighbor> nearest(String term, int k) {
+
+        WordVector vector = space.get_vector(term);
+
+        if(vector == null) {
+
+            return new ArrayList<>();
+        }
+
+        return nearest(vector, k);
+    }
+
+    /**
+     * @param vector some vector, for example that of a phrase
+     * @param k the number of neighbours we want
+     * @return (approximately) the `k` words most similar to the
+     * given vector, most similar first
+     */
+    public List<Neighbor> nearest(WordVector vector, int k) {
+
+        List<Neighbor> result = new ArrayList<>();
+
+        if(entryPoint < 0 || k <= 0) {
+
+            return result;
+        }
+
+        int entry = greedy_descent(vector, 1);
+
+        SimilarityHeap found = search_layer(vector, new int[] {entry}, 1,
+                Math.max(efSearch, k), 0);
+
+        int[] rows = new int[found.size()];
+        double[] similarities = new double[found.size()];
+        int count = found.drain_descending(rows, similarities);
+
+        for(int index = 0; index < count && index < k; index++) {
+
+            result.add(new Neighbor(slab.get_term(rows[index]), rows[index], similarities[index]));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the cosine similarity between the given vector and the
+     * word at `row`, or zero if either vector has no length
+     */
+    private double similarity(WordVector vector, int row) {
+
+        double norms = vector.get_norm() * slab.get_norm(row);
+
+        if(norms == 0) {
+
+            return 0.0;
+        }
+
+        return WordVector.dot_product(vector, space.get_vector(row)) / norms;
+    }
+
+    private double similarity(int rowA, int rowB) {
+
+        double norms = slab.get_norm(rowA) * slab.get_norm(rowB);
+
+        if(norms == 0) {
+
+            return 0.0;
+        }
+
+        return slab.dot(rowA, rowB) / norms;
+    }
+
+    /**
+     * @return the largest number of links of a node in the given layer
+     */
+    private int capacity(int level) {
+
+        return level == 0 ? 2 * m : m;
+    }
+
+    /**
+     * Walks greedily from our entry point down to layer `lowestLevel`
+     * @return the node most similar to `vector` found on the way
+     */
+    private int greedy_descent(WordVector vector, int lowestLevel) {
+
+        int current = entryPoint;
+        double currentSimilarity = similarity(vector, current);
+
+        for(int level = maxLevel; level >= lowestLevel; level--) {
+
+            boolean changed = true;
+            while(changed) {
+
+                changed = false;
+                int[] neighbours = links[current][level];
+
+                for(int index = 1; index <= neighbours[0]; index++) {
+
+                    double similarity = similarity(vector, neighbours[index]);
+                    if(similarity > currentSimilarity) {
+
+                        current = neighbours[index];
+                        currentSimilarity = similarity;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Explores one layer of the graph from the given entry points
+     * @return heap of the `ef` nodes most similar to `vector` found
+     */
+    private SimilarityHeap search_layer(WordVector vector, int[] entries, int entryCount,
+                                        int ef, int level) {
+
+        VisitedSet visitedSet = visited.get();
+        visitedSet.next_search();
+
+        // candidates are kept with negated similarities, most similar on top
+        SimilarityHeap candidates = new SimilarityHeap(ef);
+        SimilarityHeap results = new SimilarityHeap(ef + 1);
+
+        for(int index = 0; index < entryCount; index++) {
+
+            int entry = entries[index];
+            if(visitedSet.visit(entry)) {
+
+                // ranked on the value a matrix stores, as the builders rank them
+                double similarity = (float) similarity(vector, entry);
+                candidates.push(entry, -similarity);
+                results.offer(entry, similarity, ef);
+            }
+        }
+
+        while(!candidates.is_empty()) {
+
+            int candidate = candidates.peek_row();
+            double candidateSimilarity = -candidates.peek_similarity();
+            candidates.pop();
+
+            if(results.size() >= ef && candidateSimilarity < results.peek_similarity()) {
+
+                // every remaining candidate is worse than all our results
+                break;
+            }
+
+            int[] neighbours = links[candidate][level];
+
+            for(int index = 1; index <= neighbours[0]; index++) {
+
+                int neighbour = neighbours[index];
+                if(!visitedSet.visit(neighbour)) {
+
+                    continue;
+                }
+
+                double similarity = (float) similarity(vector, neighbour);
+                if(results.size() < ef || similarity > results.peek_similarity()) {
+
+                    candidates.push(neighbour, -similarity);
+                    results.offer(neighbour, similarity, ef);
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Picks at most `capacity` links among candidates sorted by decreasing
+     * similarity to some node: a candidate is kept only if it is more
+     * similar to that node than to every candidate already kept, which
+     * spreads links in different directions
+     * @return the number of candidates kept, moved to the start of `rows`
+     */
+    private int select_neighbours(int[] rows, double[] similarities, int count, int capacity) {
+
+        int selected = 0;
+
+        for(int index = 0; index < count && selected < capacity; index++) {
+
+            int candidate = rows[index];
+            boolean keep = true;
+
+            for(int other = 0; other < selected; other++) {
+
+                if(similarity(candidate, rows[other]) > similarities[index]) {
+
+                    keep = false;
+                    break;
+                }
+            }
+
+            if(keep) {
+
+                rows[selected] = candidate;
+                similarities[selected] = similarities[index];
+                selected++;
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * Adds the word at `node` to the graph
+     */
+    private void insert(int node) {
+
+        int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+
+        links[node] = new int[level + 1][];
+        for(int layer = 0; layer <= level; layer++) {
+
+            links[node][layer] = new int[capacity(layer) + 1];
+        }
+
+        if(entryPoint < 0) {
+
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        WordVector vector = space.get_vector(node);
+
+        int[] entries = new int[] {greedy_descent(vector, level + 1)};
+        int entryCount = 1;
+
+        for(int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+
+            SimilarityHeap found = search_layer(vector, entries, entryCount, efConstruction, layer);
+
+            int[] rows = new int[found.size()];
+            double[] similarities = new double[found.size()];
+            int count = found.drain_descending(rows, similarities);
+
+            // the whole result is where we search the next layer from
+            entries = rows.clone();
+            entryCount = count;
+
+            int selected = select_neighbours(rows, similarities, count, m);
+
+            int[] nodeLinks = links[node][layer];
+            for(int index = 0; index < selected; index++) {
+
+                nodeLinks[++nodeLinks[0]] = rows[index];
+                link(rows[index], node, similarities[index], layer);
+            }
+        }
+
+        if(level > maxLevel) {
+
+            entryPoint = node;
+            maxLevel = level;
+        }
+    }
+
+    /**
+     * Adds a link from `from` to `to` in the given layer, pruning
+     * the links of `from` if it has too many
+     */
+    private void link(int from, int to, double similarity, int layer) {
+
+        int[] fromLinks = links[from][layer];
+        int capacity = capacity(layer);
+
+        if(fromLinks[0] < capacity) {
+
+            fromLinks[++fromLinks[0]] = to;
+            return;
+        }
+
+        // gather current links and the new one, most similar first
+        SimilarityHeap heap = new SimilarityHeap(capacity + 1);
+        for(int index = 1; index <= fromLinks[0]; index++) {
+
+            heap.push(fromLinks[index], similarity(from, fromLinks[index]));
+        }
+        heap.push(to, similarity);
+
+        int[] rows = new int[heap.size()];
+        double[] similarities = new double[heap.size()];
+        int count = heap.drain_descending(rows, similarities);
+
+        int selected = select_neighbours(rows, similarities, count, capacity);
+
+        fromLinks[0] = selected;
+        System.arraycopy(rows, 0, fromLinks, 1, selected);
+    }
+
+    /**
+     * Marks of visited nodes: a node is visited in the current search
+     * if its mark equals the current epoch, so nothing needs clearing
+     */
+    static class VisitedSet {
+
+        int[] marks;
+        int epoch;
+
+        VisitedSet(int size) {
+
+            marks = new int[size];
+        }
+
+        void next_search() {
+
+            epoch++;
+            if(epoch == Integer.MAX_VALUE) {
+
+                java.util.Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        /**
+         * @return true if the node had not been visited yet
+         */
+        boolean visit(int node) {
+
+            if(marks[node] == epoch) {
+
+                return false;
+            }
+
+            marks[node] = epoch;
+            return true;
+        }
+    }
+}
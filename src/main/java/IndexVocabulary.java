@@ -0,0 +1,169 @@
+import io.anserini.analysis.AnalyzerUtils;
+import io.anserini.index.IndexReaderUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The words we may ever look up in an EmbeddingSpace during a run: the
+ * terms of a field of the index, and the words of our topics. Loading
+ * only the vectors of these words (see load_embeddings) keeps every other
+ * word of the embedding file out of memory, and out of every matrix
+ * generated from the space.
+ */
+public class IndexVocabulary {
+
+    String fieldName;
+
+    // number of occurrences of each term of the field in the index
+    HashMap<String, Long> indexTerms = new HashMap<>();
+
+    // words of our topics, after analysis
+    TreeSet<String> topicTerms = new TreeSet<>();
+
+    /**
+     * Reads every term of the given field of the index
+     * @param indexReader
+     * @param fieldName the field whose terms we will keep... it should be
+     *                  analyzed as the text we will score is
+     * @throws IOException if the field has no terms in the index
+     */
+    public IndexVocabulary(IndexReader indexReader, String fieldName) throws IOException {
+
+        this.fieldName = fieldName;
+
+        Terms terms = MultiTerms.getTerms(indexReader, fieldName);
+        if(terms == null) {
+
+            throw new IOException("No terms are indexed for field " + fieldName);
+        }
+
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef term;
+        while((term = termsEnum.next()) != null) {
+
+            indexTerms.put(term.utf8ToString(), termsEnum.totalTermFreq());
+        }
+    }
+
+    /**
+     * Adds the words of every field of the given topics, put through
+     * the analyzer we build queries with
+     * @param topics topics as read by StructuredReranker.get_topic_map
+     * @param analyzer
+     */
+    public void add_topics(SortedMap<Integer, Map<String, String>> topics, Analyzer analyzer) {
+
+        for(Map<String, String> topic : topics.values()) {
+
+            for(String text : topic.values()) {
+
+                if(text != null) {
+
+                    topicTerms.addAll(AnalyzerUtils.tokenize(analyzer, text));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return every word of this vocabulary
+     */
+    public Set<String> get_terms() {
+
+        HashSet<String> result = new HashSet<>(indexTerms.keySet());
+        result.addAll(topicTerms);
+        return result;
+    }
+
+    /**
+     * Loads the vectors of the words of this vocabulary only,
+     * then reports how much of the vocabulary they cover
+     * @param filePath location of the embeddings, as for EmbeddingSpace
+     * @return the restricted embedding space
+     * @throws IOException
+     */
+    public EmbeddingSpace load_embeddings(String filePath) throws IOException {
+
+        EmbeddingSpace space = new EmbeddingSpace(filePath, get_terms());
+        report_coverage(space);
+        return space;
+    }
+
+    /**
+     * Reports how many words of this vocabulary have a vector in `space`
+     * @param space some embedding space
+     */
+    public void report_coverage(EmbeddingSpace space) {
+
+        long coveredTerms = 0;
+        long occurrences = 0;
+        long coveredOccurrences = 0;
+
+        for(Map.Entry<String, Long> entry : indexTerms.entrySet()) {
+
+            occurrences += entry.getValue();
+            if(space.get_slab().get_row(entry.getKey()) >= 0) {
+
+                coveredTerms++;
+                coveredOccurrences += entry.getValue();
+            }
+        }
+
+        ArrayList<String> missingTopicTerms = new ArrayList<>();
+        for(String term : topicTerms) {
+
+            if(space.get_slab().get_row(term) < 0) {
+
+                missingTopicTerms.add(term);
+            }
+        }
+
+        System.out.println("Terms of field " + fieldName + ": " + indexTerms.size()
+                + ", with vectors: " + coveredTerms + " ("
+                + percent(coveredTerms, indexTerms.size()) + "%)");
+        System.out.println("Occurrences of those terms with vectors: "
+                + percent(coveredOccurrences, occurrences) + "%");
+        System.out.println("Topic terms: " + topicTerms.size() + ", with vectors: "
+                + (topicTerms.size() - missingTopicTerms.size()));
+
+        if(!missingTopicTerms.isEmpty()) {
+
+            System.out.println("Topic terms without vectors: " + missingTopicTerms);
+        }
+
+        System.out.println("Embedding space size: " + space.get_size());
+    }
+
+    private static double percent(long part, long whole) {
+
+        return whole == 0 ? 0.0 : (part / (double) whole) * 100.00;
+    }
+
+    /**
+     * Writes the vectors of the vocabulary of an index and its topics
+     * to a binary embedding file, which EmbeddingSpace then maps directly
+     *
+     * args[0] : path to embedding space
+     * args[1] : path to index
+     * args[2] : name of the analyzed field
+     * args[3] : path to topics
+     * args[4] : path of the binary embedding file we will write
+     */
+    public static void main(String[] args) throws IOException {
+
+        IndexReader anseriniReader = IndexReaderUtils.getReader(args[1]);
+
+        IndexVocabulary vocabulary = new IndexVocabulary(anseriniReader, args[2]);
+        vocabulary.add_topics(StructuredReranker.get_topic_map(args[3]), new StandardAnalyzer());
+
+        EmbeddingSpace space = vocabulary.load_embeddings(args[0]);
+        space.save(args[4]);
+    }
+}
@@ -0,0 +1,408 @@
+import io.anserini.analysis.AnalyzerUtils;
+import org.apache.lucene.analysis.Analyzer;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A SimilarityMatrix that computes a row from its EmbeddingSpace the
+ * first time it is asked for, rather than holding every row of the
+ * vocabulary. Scoring only reads the rows of query terms, which are few
+ * across a whole run. Rows keep either the similarities of at least some
+ * minimum, or the highest few, as the generate_matrix methods of
+ * EmbeddingSpace do, and are cached, the least recently used row being
+ * evicted once the cache holds `maxRows` rows.
+ *
+ * A row is computed for the first word of get_similarity(X, Y), the
+ * query term in scoring. With a minimum similarity, this gives the same
+ * similarities as a generated matrix. With a number of entries, a row
+ * only holds the highest similarities of its own word: a word Y is not
+ * found in the row of X because X is among the most similar words of Y.
+ */
+public class LazyTranslationMatrix extends SimilarityMatrix {
+
+    EmbeddingSpace space;
+
+    // the lowest similarity a row keeps, if rows are thresholded
+    double minSimilarity;
+
+    // the number of similarities a row keeps, if rows are not thresholded
+    int maxEntries;
+
+    int maxRows;
+
+    // rows computed so far, by row of their word in our space,
+    // in order of use (the least recently used first)
+    LinkedHashMap<Integer, Row> cache;
+
+    private LazyTranslationMatrix(EmbeddingSpace space, double minSimilarity,
+                                  int maxEntries, final int maxRows) {
+
+        this.space = space;
+        this.minSimilarity = minSimilarity;
+        this.maxEntries = maxEntries;
+        this.maxRows = maxRows;
+
+        cache = new LinkedHashMap<Integer, Row>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Row> eldest) {
+                return size() > maxRows;
+            }
+        };
+    }
+
+    /**
+     * @param space the vectors we compute rows from
+     * @param minSimilarity the lowest similarity a row keeps
+     * @param maxRows the number of rows we keep cached
+     * @return a matrix whose rows hold the similarities of at least
+     * `minSimilarity`, like generate_matrix_min_similarity
+     */
+    public static LazyTranslationMatrix with_min_similarity(EmbeddingSpace space,
+                                                            double minSimilarity, int maxRows) {
+
+        return new LazyTranslationMatrix(space, minSimilarity, 0, maxRows);
+    }
+
+    /**
+     * @param space the vectors we compute rows from
+     * @param maxEntries the number of similarities a row keeps
+     * @param maxRows the number of rows we keep cached
+     * @return a matrix whose rows hold the `maxEntries` highest
+     * similarities of their word
+     */
+    public static LazyTranslationMatrix with_max_entries(EmbeddingSpace space,
+                                                         int maxEntries, int maxRows) {
+
+        return new LazyTranslationMatrix(space, Double.NaN, maxEntries, maxRows);
+    }
+
+    /**
+     * @param X the first arbitrary word, whose row is computed
+     *          if it is not cached
+     * @param Y the second arbitrary word
+     * @return returns the similarity value of these words
+     * if it exists, otherwise, returns zero.
+     */
+    @Override
+    public Double get_similarity(String X, String Y) {
+
+        VectorSlab slab = space.get_slab();
+        return get_row(slab.get_row(X)).get(slab.get_row(Y));
+    }
+
+    /**
+     * @param X id of the first word, in the dictionary given to set_dictionary
+     * @param Y id of the second word
+     * @return the similarity of the words of the given ids
+     * if it exists, otherwise, returns zero.
+     */
+    @Override
+    public double get_similarity(int X, int Y) {
+
+        return get_row(space_row(X)).get(space_row(Y));
+    }
+
+    /**
+     * @param X id of some word, in the dictionary given to set_dictionary
+     * @return the entries of the row of the word X, computed if it
+     * is not cached, by the id of their word
+     */
+    @Override
+    public SparseRow get_sparse_row(int X) {
+
+        Row row = get_row(space_row(X));
+        double[] similarities = new double[row.values.length];
+        for(int index = 0; index < similarities.length; index++) {
+
+            similarities[index] = row.values[index];
+        }
+
+        if(dictionary == null || dictionary == space.get_dictionary()) {
+
+            // rows of our space are the ids of its dictionary
+            return new SparseRow(row.columns, similarities);
+        }
+
+        VectorSlab slab = space.get_slab();
+        int[] ids = new int[row.columns.length];
+        for(int index = 0; index < ids.length; index++) {
+
+            ids[index] = dictionary.add(slab.get_term(row.columns[index]));
+        }
+
+        return SparseRow.sorted(ids, similarities);
+    }
+
+    /**
+     * @return the row in our space of the word of the given id
+     * of our dictionary, or -1 if it has none
+     */
+    private int space_row(int id) {
+
+        if(id < 0) {
+
+            return -1;
+        }
+
+        if(dictionary == null || dictionary == space.get_dictionary()) {
+
+            // ids of our space's dictionary are its rows
+            return space.has_vector(id) ? id : -1;
+        }
+
+        return id < dictionary.get_size() ? space.get_slab().get_row(dictionary.get_term(id)) : -1;
+    }
+
+    /**
+     * @param term some word
+     * @param k the number of neighbours we want
+     * @return the (at most) `k` words with the highest similarity to
+     * `term` in its row, most similar first, each with its row in our space
+     */
+    @Override
+    public List<Neighbor> top_neighbors(String term, int k) {
+
+        VectorSlab slab = space.get_slab();
+        Row row = get_row(slab.get_row(term));
+
+        SimilarityHeap heap = new SimilarityHeap(Math.max(1, k));
+        for(int entry = 0; entry < row.columns.length; entry++) {
+
+            heap.offer(row.columns[entry], row.values[entry], k);
+        }
+
+        int[] rows = new int[k > 0 ? heap.size() : 0];
+        double[] similarities = new double[rows.length];
+        heap.drain_descending(rows, similarities);
+
+        ArrayList<Neighbor> result = new ArrayList<>();
+        for(int index = 0; index < rows.length; index++) {
+
+            result.add(new Neighbor(slab.get_term(rows[index]), rows[index], similarities[index]));
+        }
+
+        return result;
+    }
+
+    /**
+     * @param spaceRow some row of our space, or -1
+     * @return the row of our matrix for the given word,
+     * computed if it is not cached
+     */
+    Row get_row(int spaceRow) {
+
+        if(spaceRow < 0) {
+
+            return Row.EMPTY;
+        }
+
+        Row row;
+        synchronized(cache) {
+
+            row = cache.get(spaceRow);
+        }
+
+        if(row == null) {
+
+            // computed outside of the lock, so other rows are
+            // still read while this one is computed
+            row = compute_row(spaceRow);
+
+            synchronized(cache) {
+
+                cache.put(spaceRow, row);
+            }
+        }
+
+        return row;
+    }
+
+    /**
+     * Compares the word of `spaceRow` with every word of our space
+     * @return the row of our matrix for the word
+     */
+    Row compute_row(int spaceRow) {
+
+        VectorSlab slab = space.get_slab();
+        int size = slab.get_size();
+        double norm = slab.get_norm(spaceRow);
+
+        if(maxEntries > 0) {
+
+            SimilarityHeap heap = new SimilarityHeap(maxEntries);
+            for(int other = 0; other < size; other++) {
+
+                // ranked on the value the row stores, as the builders rank them
+                heap.offer(other, (float) cosine(slab, spaceRow, norm, other), maxEntries);
+            }
+
+            int[] columns = new int[heap.size()];
+            double[] similarities = new double[columns.length];
+            heap.drain_descending(columns, similarities);
+
+            // sort the entries of the row by column
+            long[] order = new long[columns.length];
+            for(int index = 0; index < order.length; index++) {
+
+                order[index] = ((long) columns[index] << 32) | index;
+            }
+            Arrays.sort(order);
+
+            float[] values = new float[order.length];
+            for(int index = 0; index < order.length; index++) {
+
+                columns[index] = (int) (order[index] >>> 32);
+                values[index] = (float) similarities[(int) order[index]];
+            }
+
+            return new Row(columns, values);
+        }
+
+        // columns come in increasing order
+        int[] columns = new int[64];
+        float[] values = new float[64];
+        int count = 0;
+        for(int other = 0; other < size; other++) {
+
+            double similarity = cosine(slab, spaceRow, norm, other);
+
+            if(similarity >= minSimilarity) {
+
+                if(count == columns.length) {
+
+                    columns = Arrays.copyOf(columns, count * 2);
+                    values = Arrays.copyOf(values, count * 2);
+                }
+
+                columns[count] = other;
+                values[count] = (float) similarity;
+                count++;
+            }
+        }
+
+        return new Row(Arrays.copyOf(columns, count), Arrays.copyOf(values, count));
+    }
+
+    /**
+     * @return the cosine similarity of two rows of `slab`, negative
+     * similarities being zero, as in the generate_matrix methods
+     */
+    private static double cosine(VectorSlab slab, int rowA, double normA, int rowB) {
+
+        double similarity = slab.dot(rowA, rowB) / (normA * slab.get_norm(rowB));
+
+        return similarity >= 0.0 ? similarity : 0.0;
+    }
+
+    /**
+     * Computes the rows of every word of the title of the given topics
+     * on every processor, so they are cached before scoring starts.
+     * Title words are put through `analyzer`, as our queries are.
+     * Only the last `maxRows` rows computed stay cached.
+     * @param topics topics as read by StructuredReranker.get_topic_map
+     * @param analyzer
+     * @return the number of rows computed
+     */
+    public int prewarm(SortedMap<Integer, Map<String, String>> topics, Analyzer analyzer) {
+
+        TreeSet<Integer> rows = new TreeSet<>();
+        for(Map<String, String> topic : topics.values()) {
+
+            String title = topic.get("title");
+            if(title == null) {
+
+                continue;
+            }
+
+            for(String term : AnalyzerUtils.tokenize(analyzer, title)) {
+
+                int row = space.get_slab().get_row(term);
+                if(row >= 0) {
+
+                    rows.add(row);
+                }
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool();
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+        try {
+
+            for(final Integer row : rows) {
+
+                tasks.add(pool.submit(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        get_row(row);
+                    }
+                }));
+            }
+
+            for(ForkJoinTask<?> task : tasks) {
+
+                task.join();
+            }
+        } finally {
+
+            pool.shutdown();
+        }
+
+        System.out.println("Rows computed for topic titles: " + rows.size());
+        return rows.size();
+    }
+
+    /**
+     * Like prewarm(SortedMap, Analyzer), reading the topics at `topicPath`
+     * @throws IOException
+     */
+    public int prewarm(String topicPath, Analyzer analyzer) throws IOException {
+
+        return prewarm(StructuredReranker.get_topic_map(topicPath), analyzer);
+    }
+
+    /**
+     * @return the number of rows cached
+     */
+    public int get_cached_rows() {
+
+        synchronized(cache) {
+
+            return cache.size();
+        }
+    }
+
+    /**
+     * The entries of one row, sorted by column
+     */
+    static class Row {
+
+        static final Row EMPTY = new Row(new int[0], new float[0]);
+
+        int[] columns;
+        float[] values;
+
+        Row(int[] columns, float[] values) {
+
+            this.columns = columns;
+            this.values = values;
+        }
+
+        /**
+         * @return the similarity at `column`, or zero
+         */
+        double get(int column) {
+
+            if(column < 0) {
+
+                return 0.0;
+            }
+
+            int index = Arrays.binarySearch(columns, column);
+            return index >= 0 ? values[index] : 0.0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import info.debatty.java.lsh.LSHSuperBit;
+
+/**
+ * The locality sensitive hash of every word of an EmbeddingSpace,
+ * computed once for a given LSHSuperBit object. All hashes are packed
+ * in one int array, `stages` ints per row, so comparing two words is
+ * a comparison of a few ints, with no allocation.
+ */
+public class LocalityHashTable {
+
+    LSHSuperBit lsh;
+    int stages;
+    int size;
+
+    // the hash of each row, `stages` ints per row
+    int[] values;
+
+    /**
+     * Computes the hash of every vector of the given slab
+     * @param slab the vectors we will hash
+     * @param lsh the Locality Sensitive Hashing object we will use
+     */
+    public LocalityHashTable(VectorSlab slab, LSHSuperBit lsh) {
+
+        this.lsh = lsh;
+        this.size = slab.get_size();
+
+        int dimensions = slab.get_dimensions();
+        double[] contents = new double[dimensions];
+
+        for(int row = 0; row < size; row++) {
+
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                contents[dimension] = slab.get(row, dimension);
+            }
+
+            int[] hash = lsh.hash(contents);
+
+            if(values == null) {
+
+                stages = hash.length;
+                values = new int[size * stages];
+            }
+
+            System.arraycopy(hash, 0, values, row * stages, stages);
+        }
+
+        if(values == null) {
+
+            values = new int[0];
+        }
+    }
+
+    /**
+     * @param lsh some Locality Sensitive Hashing object
+     * @return true if this table holds hashes made with `lsh`
+     */
+    public boolean is_for(LSHSuperBit lsh) {
+
+        return this.lsh == lsh;
+    }
+
+    /**
+     * @param row some row of the hashed slab
+     * @return the hash of the vector at `row`
+     */
+    public Slice get_hash(int row) {
+
+        return new Slice(lsh, values, row * stages, stages);
+    }
+
+    /**
+     * The hash of one vector: `stages` ints starting at `offset`
+     * in `values`, which may be shared with a whole table
+     */
+    public static class Slice {
+
+        final LSHSuperBit lsh;
+        final int[] values;
+        final int offset;
+        final int stages;
+
+        public Slice(LSHSuperBit lsh, int[] values, int offset, int stages) {
+
+            this.lsh = lsh;
+            this.values = values;
+            this.offset = offset;
+            this.stages = stages;
+        }
+
+        /**
+         * @param other the hash of some other vector
+         * @return true if every stage of both hashes is equal
+         */
+        public boolean matches(Slice other) {
+
+            for(int stageIndex = 0; stageIndex < stages;
+                stageIndex++) {
+
+                if(values[offset + stageIndex] != other.values[other.offset + stageIndex]) {
+
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * @return a copy of this hash
+         */
+        public int[] to_array() {
+
+            int[] result = new int[stages];
+            System.arraycopy(values, offset, result, 0, stages);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,633 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Binary on-disk format for a TranslationMatrix, storing each row of
+ * the matrix as a sparse list of (column, similarity) entries. All values
+ * are little-endian. The layout is:
+ *
+ *   int   magic (MAGIC)
+ *   int   version (VERSION)
+ *   int   number of words (rows)
+ *   int   flags (none defined yet)
+ *   long  number of entries
+ *   long  position of the term table
+ *   long  position of the row offsets
+ *   long  position of the columns
+ *   long  position of the values
+ *   ...   padding up to HEADER_SIZE bytes
+ *   term table, for each row: int length, then the word in UTF-8
+ *   ...   padding up to a multiple of 8 bytes
+ *   long  row offsets, one per row plus one: the index of the first
+ *         entry of each row, the last one being the number of entries
+ *   int   columns, the row of the other word of each entry, sorted
+ *         in increasing order within each row
+ *   float values, the similarity of each entry
+ *
+ * Rows are complete: the similarity of X and Y is stored both in the
+ * row of X and in the row of Y.
+ *
+ * The columns and values are mapped read-only and are never copied into
+ * the heap, so opening a file only costs reading its term table and row
+ * offsets, and several processes opening the same file share it through
+ * the page cache.
+ */
+public class MatrixFile {
+
+    public static final int MAGIC = 0x544D4154;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+
+    /**
+     * Writes the header of a matrix file
+     * @param channel the file we are writing
+     * @param size the number of words
+     * @param entries the number of entries
+     * @param sections positions of the term table, row offsets,
+     *                 columns and values, as given by `layout`
+     * @throws IOException
+     */
+    static void write_header(FileChannel channel, int size, long entries,
+                             long[] sections) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(size);
+        header.putInt(0);
+        header.putLong(entries);
+        header.putLong(sections[0]);
+        header.putLong(sections[1]);
+        header.putLong(sections[2]);
+        header.putLong(sections[3]);
+        header.position(HEADER_SIZE);
+
+        write_at(channel, header, 0);
+    }
+
+    /**
+     * @param terms the words of the matrix, in row order
+     * @param entries the number of entries
+     * @return positions of the term table, row offsets, columns
+     * and values of a file holding the given words and entries
+     */
+    static long[] layout(String[] terms, long entries) {
+
+        long termsOffset = HEADER_SIZE;
+        long termsLength = 0;
+        for(String term : terms) {
+
+            termsLength += 4 + term.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        long rowsOffset = (termsOffset + termsLength + 7) & ~7L;
+        long columnsOffset = rowsOffset + 8L * (terms.length + 1);
+        long valuesOffset = columnsOffset + 4L * entries;
+
+        return new long[] {termsOffset, rowsOffset, columnsOffset, valuesOffset};
+    }
+
+    /**
+     * Writes the term table of a matrix file at `position`
+     * @throws IOException
+     */
+    static void write_terms(FileChannel channel, String[] terms, long position) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        for(String term : terms) {
+
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+
+            if(buffer.remaining() < 4 + bytes.length) {
+
+                position = write_at(channel, buffer, position);
+            }
+
+            if(buffer.remaining() < 4 + bytes.length) {
+
+                // a very long word, give it a buffer of its own
+                ByteBuffer large = ByteBuffer.allocate(4 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+                large.putInt(bytes.length);
+                large.put(bytes);
+                position = write_at(channel, large, position);
+            } else {
+
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+
+        write_at(channel, buffer, position);
+    }
+
+    /**
+     * Writes the contents of `buffer` (up to its position) at `position`,
+     * then clears it
+     * @return the position following what was written
+     * @throws IOException
+     */
+    static long write_at(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+
+        return position;
+    }
+
+    /**
+     * Writes the given matrix to `filePath` in our format
+     * @param matrix the matrix we will write, which is first copied into
+     *               compressed sparse row form if it is not in it
+     * @param filePath location of the new file
+     * @throws IOException
+     */
+    public static void write(SimilarityMatrix matrix, String filePath) throws IOException {
+
+        CsrTranslationMatrix csr = CsrTranslationMatrix.copy_of(matrix);
+
+        int size = csr.get_size();
+        long entries = csr.get_entries();
+        String[] terms = new String[size];
+        for(int row = 0; row < size; row++) {
+
+            terms[row] = csr.get_term(row);
+        }
+
+        long[] sections = layout(terms, entries);
+
+        FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        try {
+
+            write_header(channel, size, entries, sections);
+            write_terms(channel, terms, sections[0]);
+
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+            long position = sections[1];
+            for(int row = 0; row <= size; row++) {
+
+                if(buffer.remaining() < 8) {
+
+                    position = write_at(channel, buffer, position);
+                }
+                buffer.putLong(row < size ? csr.get_row_start(row) : entries);
+            }
+            write_at(channel, buffer, position);
+
+            position = sections[2];
+            for(long entry = 0; entry < entries; entry++) {
+
+                if(buffer.remaining() < 4) {
+
+                    position = write_at(channel, buffer, position);
+                }
+                buffer.putInt(csr.get_column(entry));
+            }
+            write_at(channel, buffer, position);
+
+            position = sections[3];
+            for(long entry = 0; entry < entries; entry++) {
+
+                if(buffer.remaining() < 4) {
+
+                    position = write_at(channel, buffer, position);
+                }
+                buffer.putFloat(csr.get_value(entry));
+            }
+            write_at(channel, buffer, position);
+        } finally {
+
+            channel.close();
+        }
+    }
+
+    /**
+     * Maps the matrix file at `filePath` read-only into memory
+     * @param filePath location of a matrix file
+     * @return a matrix whose entries are read directly from the mapped
+     * file... only its term table and row offsets are read into the heap.
+     * The columns and values are mapped in segments (see
+     * CsrTranslationMatrix.SEGMENT_ENTRIES), so files of any size map.
+     * @throws IOException if the file is not in our format
+     */
+    public static CsrTranslationMatrix map(String filePath) throws IOException {
+
+        FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+
+        try {
+
+            Header header = read_header(channel, filePath);
+            int size = header.size;
+            long entries = header.entries;
+            long termsOffset = header.termsOffset;
+            long rowsOffset = header.rowsOffset;
+            long columnsOffset = header.columnsOffset;
+            long valuesOffset = header.valuesOffset;
+
+            String[] terms = read_terms(channel, termsOffset, rowsOffset - termsOffset, size);
+
+            long[] rowOffsets = new long[size + 1];
+            MappedByteBuffer rows = channel.map(FileChannel.MapMode.READ_ONLY,
+                    rowsOffset, 8L * (size + 1));
+            rows.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(rowOffsets);
+
+            // the mappings stay valid once the channel is closed
+            int segments = CsrTranslationMatrix.segment_count(entries);
+            IntBuffer[] columns = new IntBuffer[segments];
+            FloatBuffer[] values = new FloatBuffer[segments];
+            for(int segment = 0; segment < segments; segment++) {
+
+                long start = (long) segment << CsrTranslationMatrix.SEGMENT_SHIFT;
+                long length = 4L * Math.min(CsrTranslationMatrix.SEGMENT_ENTRIES, entries - start);
+
+                columns[segment] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        columnsOffset + 4L * start, length).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                values[segment] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        valuesOffset + 4L * start, length).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+
+            return new CsrTranslationMatrix(terms, rowOffsets, columns, values);
+        } finally {
+
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads and checks the header of a matrix file
+     * @throws IOException if the file is not in our format
+     */
+    static Header read_header(FileChannel channel, String filePath) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining()) {
+
+            if(channel.read(buffer, buffer.position()) < 0) {
+
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+
+        if(buffer.getInt() != MAGIC) {
+
+            throw new IOException(filePath + " is not a translation matrix file");
+        }
+
+        int version = buffer.getInt();
+        if(version != VERSION) {
+
+            throw new IOException("Unsupported translation matrix file version " + version);
+        }
+
+        Header header = new Header();
+        header.size = buffer.getInt();
+        buffer.getInt();
+        header.entries = buffer.getLong();
+        header.termsOffset = buffer.getLong();
+        header.rowsOffset = buffer.getLong();
+        header.columnsOffset = buffer.getLong();
+        header.valuesOffset = buffer.getLong();
+
+        return header;
+    }
+
+    /**
+     * Writes to `targetPath` the matrix of the file at `sourcePath`
+     * keeping only the entries of at least `minSimilarity` and, if
+     * `maxEntries` is positive, the `maxEntries` highest similarities of
+     * each word (recorded in both directions, as in
+     * generate_matrix_max_entries, ties going to the lower word id as in
+     * SimilarityHeap). A matrix built at a lower threshold thereby gives
+     * the matrix of a higher one without recomputing any similarity.
+     *
+     * The source is read in a few sequential passes over its mapped
+     * entries, never held in the heap: only two numbers per word are.
+     * @param sourcePath location of a matrix file
+     * @param targetPath location of the new matrix file
+     * @param minSimilarity the lowest similarity we will keep
+     * @param maxEntries the number of similarities we keep for each word,
+     *                   or zero to keep them all
+     * @throws IOException
+     */
+    public static void prune(String sourcePath, String targetPath,
+                             double minSimilarity, int maxEntries) throws IOException {
+
+        FileChannel source = FileChannel.open(Paths.get(sourcePath), StandardOpenOption.READ);
+
+        try {
+
+            Header header = read_header(source, sourcePath);
+            int size = header.size;
+
+            long[] rowOffsets = new long[size + 1];
+            MappedByteBuffer rows = source.map(FileChannel.MapMode.READ_ONLY,
+                    header.rowsOffset, 8L * (size + 1));
+            rows.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(rowOffsets);
+
+            EntryReader reader = new EntryReader(source, header);
+
+            // the least similar entry each row keeps, as its similarity
+            // and column (a row keeps every entry until it is full)
+            float[] lastValue = new float[size];
+            int[] lastColumn = new int[size];
+            Arrays.fill(lastValue, Float.NEGATIVE_INFINITY);
+            Arrays.fill(lastColumn, Integer.MAX_VALUE);
+
+            if(maxEntries > 0) {
+
+                // first pass: the `maxEntries`th entry of each row
+                SimilarityHeap heap = new SimilarityHeap(maxEntries);
+                for(int row = 0; row < size; row++) {
+
+                    heap.clear();
+                    for(long entry = rowOffsets[row]; entry < rowOffsets[row + 1]; entry++) {
+
+                        heap.offer(reader.column(entry), reader.value(entry), maxEntries);
+                    }
+
+                    if(heap.size() == maxEntries) {
+
+                        lastValue[row] = (float) heap.peek_similarity();
+                        lastColumn[row] = heap.peek_row();
+                    }
+                }
+            }
+
+            // second pass: the number of entries each row keeps
+            long[] keptOffsets = new long[size + 1];
+            for(int row = 0; row < size; row++) {
+
+                long kept = 0;
+                for(long entry = rowOffsets[row]; entry < rowOffsets[row + 1]; entry++) {
+
+                    if(keep(reader.column(entry), reader.value(entry), row, lastValue, lastColumn, minSimilarity)) {
+
+                        kept++;
+                    }
+                }
+                keptOffsets[row + 1] = keptOffsets[row] + kept;
+            }
+
+            long entries = keptOffsets[size];
+            String[] terms = read_terms(source, header.termsOffset,
+                    header.rowsOffset - header.termsOffset, size);
+            long[] sections = layout(terms, entries);
+
+            FileChannel target = FileChannel.open(Paths.get(targetPath), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+            try {
+
+                write_header(target, size, entries, sections);
+                write_terms(target, terms, sections[0]);
+
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                long position = sections[1];
+                for(int row = 0; row <= size; row++) {
+
+                    if(buffer.remaining() < 8) {
+
+                        position = write_at(target, buffer, position);
+                    }
+                    buffer.putLong(keptOffsets[row]);
+                }
+                write_at(target, buffer, position);
+
+                // last pass: the entries we keep, columns and
+                // values written side by side
+                ByteBuffer columnBuffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                ByteBuffer valueBuffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                long columnPosition = sections[2];
+                long valuePosition = sections[3];
+
+                for(int row = 0; row < size; row++) {
+
+                    for(long entry = rowOffsets[row]; entry < rowOffsets[row + 1]; entry++) {
+
+                        int column = reader.column(entry);
+                        float value = reader.value(entry);
+
+                        if(!keep(column, value, row, lastValue, lastColumn, minSimilarity)) {
+
+                            continue;
+                        }
+
+                        if(!columnBuffer.hasRemaining()) {
+
+                            columnPosition = write_at(target, columnBuffer, columnPosition);
+                            valuePosition = write_at(target, valueBuffer, valuePosition);
+                        }
+                        columnBuffer.putInt(column);
+                        valueBuffer.putFloat(value);
+                    }
+                }
+
+                write_at(target, columnBuffer, columnPosition);
+                write_at(target, valueBuffer, valuePosition);
+            } finally {
+
+                target.close();
+            }
+
+            System.out.println("Entries kept: " + entries + " of " + header.entries);
+        } finally {
+
+            source.close();
+        }
+    }
+
+    /**
+     * @return true if the entry (row, column) of the given similarity
+     * is kept by `prune`: it is at least `minSimilarity`, and among the
+     * highest of either its row or its column
+     */
+    private static boolean keep(int column, float value, int row,
+                                float[] lastValue, int[] lastColumn, double minSimilarity) {
+
+        return value >= minSimilarity
+                && (!SimilarityHeap.less(value, column, lastValue[row], lastColumn[row])
+                    || !SimilarityHeap.less(value, row, lastValue[column], lastColumn[column]));
+    }
+
+    /**
+     * Reads the term table of a matrix file
+     * @throws IOException
+     */
+    static String[] read_terms(FileChannel channel, long termsOffset, long termsLength,
+                               int size) throws IOException {
+
+        if(termsLength > Integer.MAX_VALUE) {
+
+            throw new IOException("Term table is too large to be mapped");
+        }
+
+        MappedByteBuffer termTable = channel.map(FileChannel.MapMode.READ_ONLY,
+                termsOffset, termsLength);
+        termTable.order(ByteOrder.LITTLE_ENDIAN);
+
+        String[] terms = new String[size];
+        byte[] bytes = new byte[64];
+        for(int row = 0; row < size; row++) {
+
+            int length = termTable.getInt();
+            if(length > bytes.length) {
+
+                bytes = new byte[length];
+            }
+
+            termTable.get(bytes, 0, length);
+            terms[row] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        return terms;
+    }
+
+    /**
+     * @param filePath some file
+     * @return true if the given file exists and starts with
+     * the magic number of our format
+     */
+    public static boolean is_binary(String filePath) {
+
+        File f = new File(filePath);
+
+        if(!f.isFile() || f.length() < HEADER_SIZE) {
+
+            return false;
+        }
+
+        try {
+
+            DataInputStream in = new DataInputStream(new FileInputStream(f));
+            int magic = Integer.reverseBytes(in.readInt());
+            in.close();
+
+            return magic == MAGIC;
+        } catch(IOException e) {
+
+            return false;
+        }
+    }
+
+    /**
+     * Converts a translation matrix serialized by an older version
+     * of TranslationMatrix.save into our format
+     * @param serializedPath location of the serialized matrix
+     * @param binaryPath location of the new matrix file
+     * @throws IOException
+     */
+    public static void convert(String serializedPath, String binaryPath) throws IOException {
+
+        write(SimilarityMatrix.read(serializedPath), binaryPath);
+    }
+
+    /**
+     * Converts a serialized matrix to our format, or,
+     * given a minimum similarity, prunes a matrix file
+     *
+     * args[0] : path to a serialized translation matrix, or to a
+     *           matrix file if args[2] is given
+     * args[1] : path of the matrix file we will write
+     * args[2] : (optional) the lowest similarity we will keep
+     * args[3] : (optional) the number of similarities we keep for each word
+     */
+    public static void main(String[] args) throws IOException {
+
+        if(args.length > 2) {
+
+            prune(args[0], args[1], Double.parseDouble(args[2]),
+                    args.length > 3 ? Integer.parseInt(args[3]) : 0);
+        } else {
+
+            convert(args[0], args[1]);
+        }
+    }
+
+    /**
+     * The fields of the header of a matrix file
+     */
+    static class Header {
+
+        int size;
+        long entries;
+        long termsOffset;
+        long rowsOffset;
+        long columnsOffset;
+        long valuesOffset;
+    }
+
+    /**
+     * Reads the columns and values of a matrix file in order,
+     * mapping a piece of each at a time
+     */
+    static class EntryReader {
+
+        // number of entries in each mapped piece
+        static final int PIECE_ENTRIES = 1 << 24;
+
+        FileChannel channel;
+        Header header;
+
+        IntBuffer columns;
+        FloatBuffer values;
+        long pieceStart = 0;
+        long pieceEnd = 0;
+
+        EntryReader(FileChannel channel, Header header) {
+
+            this.channel = channel;
+            this.header = header;
+        }
+
+        int column(long entry) throws IOException {
+
+            move_to(entry);
+            return columns.get((int) (entry - pieceStart));
+        }
+
+        float value(long entry) throws IOException {
+
+            move_to(entry);
+            return values.get((int) (entry - pieceStart));
+        }
+
+        /**
+         * Maps the piece holding `entry`, if it is not mapped
+         */
+        private void move_to(long entry) throws IOException {
+
+            if(entry >= pieceStart && entry < pieceEnd) {
+
+                return;
+            }
+
+            pieceStart = entry;
+            pieceEnd = Math.min(header.entries, entry + PIECE_ENTRIES);
+            long length = 4L * (pieceEnd - pieceStart);
+
+            columns = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.columnsOffset + 4L * pieceStart, length)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            values = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.valuesOffset + 4L * pieceStart, length)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+}
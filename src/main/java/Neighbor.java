@@ -0,0 +1,40 @@
+/**
+ * A word found near some vector or word, with its similarity to it
+ */
+public class Neighbor {
+
+    String term;
+    int row;
+    double similarity;
+
+    public Neighbor(String term, int row, double similarity) {
+
+        this.term = term;
+        this.row = row;
+        this.similarity = similarity;
+    }
+
+    public String get_term() {
+
+        return this.term;
+    }
+
+    /**
+     * @return the row of this word in the EmbeddingSpace (or
+     * CsrTranslationMatrix) it was found in, or -1 if it has none
+     */
+    public int get_row() {
+
+        return this.row;
+    }
+
+    public double get_similarity() {
+
+        return this.similarity;
+    }
+
+    public String toString() {
+
+        return term + " " + similarity;
+    }
+}
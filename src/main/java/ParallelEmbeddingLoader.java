@@ -0,0 +1,433 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Loads word embeddings in the word2vec text format on a fork-join pool.
+ * The file is split into byte ranges that end on line boundaries, each
+ * range is parsed concurrently straight from its bytes (no String per
+ * line, no boxed component), and the parsed ranges are then copied,
+ * in file order, into one VectorSlab.
+ */
+public class ParallelEmbeddingLoader {
+
+    // we never split the file into ranges smaller than this
+    static final int MIN_CHUNK_BYTES = 1 << 20;
+
+    // powers of ten that are exactly representable as doubles
+    static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Loads the embeddings at `filePath` using every available processor
+     * @param filePath location of embeddings in the word2vec text format
+     * @return slab holding every vector of the file, in file order
+     * @throws IOException
+     */
+    public static VectorSlab load(String filePath) throws IOException {
+
+        return load(filePath, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Loads the embeddings at `filePath`, parsing the file
+     * with the given number of threads
+     * @param filePath location of embeddings in the word2vec text format
+     * @param parallelism the number of threads we will parse with
+     * @return slab holding every vector of the file, in file order
+     * @throws IOException
+     */
+    public static VectorSlab load(String filePath, int parallelism) throws IOException {
+
+        return load(filePath, parallelism, null);
+    }
+
+    /**
+     * Loads the embeddings at `filePath` of the words of `vocabulary`
+     * only. Lines of other words are skipped without parsing their vectors.
+     * @param filePath location of embeddings in the word2vec text format
+     * @param parallelism the number of threads we will parse with
+     * @param vocabulary the words we will keep, or null to keep every word
+     * @return slab holding the vectors of the kept words, in file order
+     * @throws IOException
+     */
+    public static VectorSlab load(String filePath, int parallelism,
+                                  Set<String> vocabulary) throws IOException {
+
+        FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+
+            long fileSize = channel.size();
+
+            // the first line says how many words and how many dimensions
+            long dataStart = next_line(channel, 0, fileSize);
+            String header = new String(read_range(channel, 0, dataStart),
+                    StandardCharsets.UTF_8).trim();
+            String[] input = header.split(" ");
+            int numberofdimensions = Integer.parseInt(input[1]);
+
+            // split the rest of the file into ranges on line boundaries
+            long chunkBytes = Math.max(MIN_CHUNK_BYTES,
+                    (fileSize - dataStart) / (parallelism * 4L) + 1);
+            chunkBytes = Math.min(chunkBytes, Integer.MAX_VALUE - 8);
+
+            List<ChunkParser> parsers = new ArrayList<>();
+            long start = dataStart;
+            while(start < fileSize) {
+
+                long end = start + chunkBytes >= fileSize ? fileSize
+                        : next_line(channel, start + chunkBytes, fileSize);
+                parsers.add(new ChunkParser(channel, start, end, numberofdimensions, vocabulary));
+                start = end;
+            }
+
+            for(ChunkParser parser : parsers) {
+
+                pool.execute(parser);
+            }
+
+            // assemble our slab in file order
+            List<ParsedChunk> chunks = new ArrayList<>();
+            int foundterms = 0;
+            int skippedterms = 0;
+            for(ChunkParser parser : parsers) {
+
+                ParsedChunk chunk = parser.join();
+                chunks.add(chunk);
+                foundterms += chunk.terms.size();
+                skippedterms += chunk.skipped;
+            }
+
+            String[] terms = new String[foundterms];
+            float[] contents = new float[foundterms * numberofdimensions];
+            int row = 0;
+            for(ParsedChunk chunk : chunks) {
+
+                int rows = chunk.terms.size();
+                for(int index = 0; index < rows; index++) {
+
+                    terms[row + index] = chunk.terms.get(index);
+                }
+
+                System.arraycopy(chunk.contents, 0, contents, row * numberofdimensions,
+                        rows * numberofdimensions);
+                row += rows;
+            }
+
+            if(vocabulary == null) {
+
+                System.out.println("Terms founds in word2vec: " + foundterms);
+            } else {
+
+                System.out.println("Terms founds in word2vec: " + (foundterms + skippedterms)
+                        + ", kept " + foundterms + " of the given vocabulary");
+            }
+            return new VectorSlab(terms, contents, numberofdimensions);
+        } catch(RuntimeException e) {
+
+            // rethrow read errors of our workers as they were thrown
+            if(e.getCause() instanceof IOException) {
+
+                throw (IOException) e.getCause();
+            }
+
+            throw e;
+        } finally {
+
+            pool.shutdown();
+            channel.close();
+        }
+    }
+
+    /**
+     * Parses one range of lines of an embedding file
+     */
+    static class ChunkParser extends RecursiveTask<ParsedChunk> {
+
+        FileChannel channel;
+        long start;
+        long end;
+        int dimensions;
+        Set<String> vocabulary;
+
+        ChunkParser(FileChannel channel, long start, long end, int dimensions,
+                    Set<String> vocabulary) {
+
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.dimensions = dimensions;
+            this.vocabulary = vocabulary;
+        }
+
+        @Override
+        protected ParsedChunk compute() {
+
+            byte[] bytes;
+            try {
+
+                bytes = read_range(channel, start, end);
+            } catch(IOException e) {
+
+                throw new UncheckedIOException(e);
+            }
+
+            ParsedChunk result = new ParsedChunk();
+            // room for every line, unless most of them will be skipped
+            float[] contents = new float[vocabulary == null
+                    ? Math.max(dimensions, bytes.length / 8) : dimensions * 64];
+            int rows = 0;
+
+            int position = 0;
+            int length = bytes.length;
+            while(position < length) {
+
+                // find the end of this line
+                int lineEnd = position;
+                while(lineEnd < length && bytes[lineEnd] != '\n') {
+
+                    lineEnd++;
+                }
+
+                int lineStop = lineEnd;
+                if(lineStop > position && bytes[lineStop - 1] == '\r') {
+
+                    lineStop--;
+                }
+
+                // the word is everything up to the first space
+                int termEnd = position;
+                while(termEnd < lineStop && bytes[termEnd] != ' ') {
+
+                    termEnd++;
+                }
+
+                String term = null;
+                if(termEnd > position) {
+
+                    term = new String(bytes, position, termEnd - position, StandardCharsets.UTF_8);
+
+                    if(vocabulary != null && !vocabulary.contains(term)) {
+
+                        result.skipped++;
+                        term = null;
+                    }
+                }
+
+                if(term != null) {
+
+                    int offset = rows * dimensions;
+                    if(offset + dimensions > contents.length) {
+
+                        contents = Arrays.copyOf(contents,
+                                Math.max(contents.length * 2, offset + dimensions));
+                    }
+
+                    int dimension = 0;
+                    int tokenStart = termEnd + 1;
+                    while(tokenStart < lineStop && dimension < dimensions) {
+
+                        int tokenEnd = tokenStart;
+                        while(tokenEnd < lineStop && bytes[tokenEnd] != ' ') {
+
+                            tokenEnd++;
+                        }
+
+                        if(tokenEnd > tokenStart) {
+
+                            contents[offset + dimension] = parse_float(bytes, tokenStart, tokenEnd);
+                            dimension++;
+                        }
+
+                        tokenStart = tokenEnd + 1;
+                    }
+
+                    result.terms.add(term);
+                    rows++;
+                }
+
+                position = lineEnd + 1;
+            }
+
+            result.contents = contents;
+            return result;
+        }
+    }
+
+    /**
+     * The words and vectors found in one range of an embedding file
+     */
+    static class ParsedChunk {
+
+        ArrayList<String> terms = new ArrayList<>();
+        float[] contents;
+
+        // number of words left out of the vocabulary we were given
+        int skipped;
+    }
+
+    /**
+     * Parses a decimal number from the given bytes without creating
+     * any object. Numbers with at most 15 significant digits and a small
+     * exponent, which is every component of a word2vec file, are computed
+     * exactly in double arithmetic, so the result always equals
+     * (float) Double.parseDouble of the same text. Anything else is
+     * handed to Double.parseDouble.
+     * @param bytes the text we will parse
+     * @param start position of the first character of the number
+     * @param end position after the last character of the number
+     * @return the parsed number
+     */
+    public static float parse_float(byte[] bytes, int start, int end) {
+
+        int position = start;
+        boolean negative = false;
+
+        if(position < end && (bytes[position] == '-' || bytes[position] == '+')) {
+
+            negative = bytes[position] == '-';
+            position++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+
+        // integer part
+        while(position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+
+            seenDigit = true;
+            if(mantissa != 0 || bytes[position] != '0') {
+
+                mantissa = mantissa * 10 + (bytes[position] - '0');
+                digits++;
+            }
+            position++;
+        }
+
+        // fractional part
+        if(position < end && bytes[position] == '.') {
+
+            position++;
+            while(position < end && bytes[position] >= '0' && bytes[position] <= '9') {
+
+                seenDigit = true;
+                if(mantissa != 0 || bytes[position] != '0') {
+
+                    mantissa = mantissa * 10 + (bytes[position] - '0');
+                    digits++;
+                }
+                exponent--;
+                position++;
+            }
+        }
+
+        // exponent part
+        if(seenDigit && position < end && (bytes[position] == 'e' || bytes[position] == 'E')) {
+
+            position++;
+            boolean negativeExponent = false;
+            if(position < end && (bytes[position] == '-' || bytes[position] == '+')) {
+
+                negativeExponent = bytes[position] == '-';
+                position++;
+            }
+
+            int value = 0;
+            boolean seenExponentDigit = false;
+            while(position < end && bytes[position] >= '0' && bytes[position] <= '9'
+                    && value < 100000) {
+
+                value = value * 10 + (bytes[position] - '0');
+                seenExponentDigit = true;
+                position++;
+            }
+
+            if(!seenExponentDigit) {
+
+                seenDigit = false;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        if(!seenDigit || position != end || digits > 15
+                || exponent < -22 || exponent > 22) {
+
+            // not a plain number we can do exactly, parse the slow way
+            return (float) Double.parseDouble(new String(bytes, start, end - start,
+                    StandardCharsets.US_ASCII));
+        }
+
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * @return the position just after the first line break at or
+     * after `position`, or `fileSize` if there is none
+     */
+    static long next_line(FileChannel channel, long position, long fileSize) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        while(position < fileSize) {
+
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if(read <= 0) {
+
+                break;
+            }
+
+            for(int index = 0; index < read; index++) {
+
+                if(buffer.get(index) == '\n') {
+
+                    return position + index + 1;
+                }
+            }
+
+            position += read;
+        }
+
+        return fileSize;
+    }
+
+    /**
+     * @return the bytes of the file between `start` and `end`
+     */
+    static byte[] read_range(FileChannel channel, long start, long end) throws IOException {
+
+        byte[] bytes = new byte[(int) (end - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = start;
+
+        while(buffer.hasRemaining()) {
+
+            int read = channel.read(buffer, position);
+            if(read < 0) {
+
+                throw new EOFException();
+            }
+            position += read;
+        }
+
+        return bytes;
+    }
+}
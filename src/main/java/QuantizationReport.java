@@ -0,0 +1,269 @@
+import info.debatty.java.lsh.LSHSuperBit;
+import io.anserini.index.IndexReaderUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reports how far results drift when an EmbeddingSpace is quantized
+ * (see QuantizedSlab), compared with the full precision space: both for
+ * individual cosine similarities and for final document scores.
+ */
+public class QuantizationReport {
+
+    /**
+     * Compares cosine similarities of the full precision and quantized
+     * spaces. `samples` words are picked at random and compared with
+     * every word of the space, so that the highly similar pairs (the
+     * ones that end up in translation matrices) are covered too.
+     * @param full the full precision space
+     * @param quantized the quantized copy of `full`
+     * @param samples the number of words we will compare with every word
+     * @param tolerance the tolerance level of cosine_similarity... we count
+     *                  the pairs that fall on different sides of it
+     * @param seed seed for picking words
+     */
+    public static void report_similarity_drift(EmbeddingSpace full,
+                                               EmbeddingSpace quantized,
+                                               int samples,
+                                               double tolerance,
+                                               long seed) {
+
+        Random random = new Random(seed);
+        int size = full.get_size();
+
+        long pairs = 0;
+        long flips = 0;
+        double sumError = 0;
+        double sumSquaredError = 0;
+        double maxError = 0;
+
+        for(int sample = 0; sample < samples; sample++) {
+
+            int rowA = random.nextInt(size);
+
+            for(int rowB = 0; rowB < size; rowB++) {
+
+                double exact = WordVector.cosine_similarity(full.get_vector(rowA),
+                        full.get_vector(rowB), -2.0);
+                double approximate = WordVector.cosine_similarity(quantized.get_vector(rowA),
+                        quantized.get_vector(rowB), -2.0);
+
+                double error = Math.abs(exact - approximate);
+                sumError += error;
+                sumSquaredError += error * error;
+                maxError = Math.max(maxError, error);
+
+                if((exact >= tolerance) != (approximate >= tolerance)) {
+
+                    flips++;
+                }
+
+                pairs++;
+            }
+        }
+
+        System.out.println("Cosine similarity drift over " + pairs + " pairs:");
+        System.out.println("  mean absolute error: " + sumError / pairs);
+        System.out.println("  root mean squared error: " + Math.sqrt(sumSquaredError / pairs));
+        System.out.println("  max absolute error: " + maxError);
+        System.out.println("  pairs crossing tolerance " + tolerance + ": " + flips);
+    }
+
+    /**
+     * Scores every document of the results file at `inputPath` with
+     * score_document_text_dirichlet, once with each space, and reports
+     * how far the scores and the per-topic rankings drift.
+     * @param indexReader
+     * @param translationMatrix
+     * @param lsh
+     * @param structuredTopicReaderMap topics we will build queries from
+     * @param inputPath anserini results file, as in generate_scores
+     * @param analyzer
+     * @param full the full precision space
+     * @param quantized the quantized copy of `full`
+     * @param fieldName
+     * @param type the type of calculation we will do
+     * @param mu
+     * @param alpha
+     * @param beta
+     * @param tolerance tolerance level of calculation for similarities
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static void report_score_drift(IndexReader indexReader,
+                                          SimilarityMatrix translationMatrix,
+                                          LSHSuperBit lsh,
+                                          SortedMap<Integer, Map<String, String>> structuredTopicReaderMap,
+                                          String inputPath,
+                                          Analyzer analyzer,
+                                          EmbeddingSpace full,
+                                          EmbeddingSpace quantized,
+                                          String fieldName,
+                                          StructuredDocumentScorer.CalculationType type,
+                                          Double mu,
+                                          Double alpha,
+                                          Double beta,
+                                          Double tolerance) throws IOException, ParseException {
+
+        int corpusSize = StructuredReranker.get_corpus_size(indexReader);
+        StructuredDocumentScorer fullScorer = new StructuredDocumentScorer(indexReader,
+                translationMatrix, full, lsh, mu, alpha, beta, corpusSize, tolerance);
+        StructuredDocumentScorer quantizedScorer = new StructuredDocumentScorer(indexReader,
+                translationMatrix, quantized, lsh, mu, alpha, beta, corpusSize, tolerance);
+
+        StructuredQueryGenerator fullGenerator = new StructuredQueryGenerator(full);
+        StructuredQueryGenerator quantizedGenerator = new StructuredQueryGenerator(quantized);
+
+        // scores of each topic, full precision then quantized
+        TreeMap<Integer, ArrayList<double[]>> topicScores = new TreeMap<>();
+
+        long documents = 0;
+        double sumError = 0;
+        double maxError = 0;
+        double sumRelativeError = 0;
+
+        BufferedReader br = new BufferedReader(new FileReader(inputPath));
+        String line;
+
+        // the queries of the topic of the previous line, built once
+        // for the lines of a topic so its documents share them
+        Integer queryTopic = null;
+        StructuredQuery fullQuery = null;
+        StructuredQuery quantizedQuery = null;
+
+        while((line = br.readLine()) != null) {
+
+            String[] splited = line.split("\\s+");
+            Integer topicNumber = Integer.parseInt(splited[0]);
+
+            if(!topicNumber.equals(queryTopic)) {
+
+                String queryText = structuredTopicReaderMap.get(topicNumber).get("title");
+
+                queryTopic = topicNumber;
+                try {
+
+                    fullQuery = fullGenerator.buildQuery(fieldName, analyzer, queryText);
+                    quantizedQuery = quantizedGenerator.buildQuery(fieldName, analyzer, queryText);
+                } catch(NullPointerException e) {
+
+                    fullQuery = null;
+                    quantizedQuery = null;
+                }
+            }
+
+            if(fullQuery == null || quantizedQuery == null) {
+
+                // a word of this query has no vector, it is not rescored
+                continue;
+            }
+
+            Integer indexDocID = IndexReaderUtils.convertDocidToLuceneDocid(indexReader, splited[2]);
+            Document document = indexReader.document(indexDocID);
+
+            fullScorer.set_document(document, fieldName, analyzer);
+            quantizedScorer.set_document(document, fieldName, analyzer);
+
+            double exact = fullScorer.score_document_text_dirichlet(fullQuery,
+                    document.get(fieldName), analyzer, type);
+            double approximate = quantizedScorer.score_document_text_dirichlet(quantizedQuery,
+                    document.get(fieldName), analyzer, type);
+
+            double error = Math.abs(exact - approximate);
+            sumError += error;
+            sumRelativeError += exact == 0 ? 0 : error / Math.abs(exact);
+            maxError = Math.max(maxError, error);
+            documents++;
+
+            if(!topicScores.containsKey(topicNumber)) {
+
+                topicScores.put(topicNumber, new ArrayList<double[]>());
+            }
+            topicScores.get(topicNumber).add(new double[] {exact, approximate});
+        }
+
+        br.close();
+
+        // count documents whose rank within their topic changed
+        long moved = 0;
+        for(ArrayList<double[]> scores : topicScores.values()) {
+
+            Integer[] exactOrder = rank_order(scores, 0);
+            Integer[] approximateOrder = rank_order(scores, 1);
+
+            for(int rank = 0; rank < exactOrder.length; rank++) {
+
+                if(!exactOrder[rank].equals(approximateOrder[rank])) {
+
+                    moved++;
+                }
+            }
+        }
+
+        System.out.println("Document score drift over " + documents + " documents:");
+        System.out.println("  mean absolute error: " + sumError / documents);
+        System.out.println("  mean relative error: " + sumRelativeError / documents);
+        System.out.println("  max absolute error: " + maxError);
+        System.out.println("  documents changing rank within their topic: " + moved);
+    }
+
+    /**
+     * @return the indexes of `scores`, sorted by decreasing
+     * score in the given column
+     */
+    private static Integer[] rank_order(final ArrayList<double[]> scores, final int column) {
+
+        Integer[] order = new Integer[scores.size()];
+        for(int index = 0; index < order.length; index++) {
+
+            order[index] = index;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores.get(b)[column], scores.get(a)[column]);
+            }
+        });
+
+        return order;
+    }
+
+    /**
+     * args[0] : path to embedding space
+     * args[1] : path to translation matrix
+     * args[2] : path to index
+     * args[3] : path to structured topics
+     * args[4] : input results file (from anserini search results)
+     * args[5] : quantization type, INT8 or FLOAT16
+     */
+    public static void main(String[] args) throws IOException, ParseException {
+
+        EmbeddingSpace full = new EmbeddingSpace(args[0]);
+        QuantizedSlab.Type quantizationType = QuantizedSlab.Type.valueOf(args[5]);
+        EmbeddingSpace quantized = full.quantize(quantizationType);
+
+        System.out.println("Quantized vectors use " + ((QuantizedSlab) quantized.get_slab()).get_bytes()
+                + " bytes, full precision vectors use "
+                + 4L * full.get_size() * full.get_dimensions() + " bytes");
+
+        report_similarity_drift(full, quantized, 100, 0.55, 42);
+
+        SimilarityMatrix matrix = SimilarityMatrix.read(args[1]);
+        IndexReader anseriniReader = IndexReaderUtils.getReader(args[2]);
+        SortedMap<Integer, Map<String, String>> structuredTopics =
+                StructuredReranker.get_topic_map(args[3]);
+
+        Analyzer analyzer = new StandardAnalyzer();
+        LSHSuperBit lsh = new LSHSuperBit(2, 8, 100);
+
+        report_score_drift(anseriniReader, matrix, lsh, structuredTopics, args[4], analyzer,
+                full, quantized, "raw", StructuredDocumentScorer.CalculationType.COSINE,
+                2500.0, 0.7, 0.0, 0.55);
+    }
+}
@@ -0,0 +1,287 @@
+import java.nio.FloatBuffer;
+
+/**
+ * A VectorSlab whose vectors are stored in a quantized form, to cut
+ * the memory used by an EmbeddingSpace:
+ *
+ * INT8: each component is stored in one signed byte, scaled by a
+ * per-vector factor (the largest absolute component maps to 127).
+ *
+ * FLOAT16: each component is stored as an IEEE half precision float.
+ *
+ * Dot products are computed directly on the quantized form, without
+ * decoding vectors into floats first. Norms are those of the quantized
+ * vectors, so cosine similarities stay consistent within a slab.
+ */
+public class QuantizedSlab extends VectorSlab {
+
+    public enum Type {
+        INT8, FLOAT16
+    }
+
+    // every half precision value, decoded
+    static final float[] HALF_TO_FLOAT = half_table();
+
+    Type type;
+
+    // INT8 components and per-row scales
+    byte[] codes;
+    float[] scales;
+
+    // FLOAT16 components
+    short[] halves;
+
+    private QuantizedSlab(VectorSlab slab, Type type) {
+
+        super(slab.terms, slab.dictionary, null, slab.dimensions);
+        this.type = type;
+    }
+
+    /**
+     * @param slab the full precision vectors we will quantize
+     * @param type the quantized representation we will use
+     * @return a quantized copy of the given slab, sharing its term index
+     */
+    public static QuantizedSlab quantize(VectorSlab slab, Type type) {
+
+        QuantizedSlab result = new QuantizedSlab(slab, type);
+        int size = slab.get_size();
+        int dimensions = slab.get_dimensions();
+
+        if(type == Type.INT8) {
+
+            result.codes = new byte[size * dimensions];
+            result.scales = new float[size];
+
+            for(int row = 0; row < size; row++) {
+
+                float max = 0;
+                for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                    max = Math.max(max, Math.abs(slab.get(row, dimension)));
+                }
+
+                float scale = max / 127.0f;
+                result.scales[row] = scale;
+
+                int offset = row * dimensions;
+                for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                    int code = scale == 0 ? 0 : Math.round(slab.get(row, dimension) / scale);
+                    result.codes[offset + dimension] = (byte) Math.max(-127, Math.min(127, code));
+                }
+            }
+        } else {
+
+            result.halves = new short[size * dimensions];
+
+            for(int row = 0; row < size; row++) {
+
+                int offset = row * dimensions;
+                for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                    result.halves[offset + dimension] = to_half(slab.get(row, dimension));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public Type get_type() {
+
+        return this.type;
+    }
+
+    @Override
+    public float get(int row, int dimension) {
+
+        int index = row * dimensions + dimension;
+
+        if(type == Type.INT8) {
+
+            return codes[index] * scales[row];
+        }
+
+        return HALF_TO_FLOAT[halves[index] & 0xffff];
+    }
+
+    @Override
+    public FloatBuffer get_data(int row) {
+
+        // there are no float components to share
+        return null;
+    }
+
+    /**
+     * @param rowA some row of this slab
+     * @param rowB some row of this slab
+     * @return the dot product of the quantized vectors at `rowA` and
+     * `rowB`... for INT8 the products are summed exactly as integers
+     */
+    @Override
+    public double dot(int rowA, int rowB) {
+
+        int offsetA = rowA * dimensions;
+        int offsetB = rowB * dimensions;
+
+        if(type == Type.INT8) {
+
+            int sum = 0;
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                sum += codes[offsetA + dimension] * codes[offsetB + dimension];
+            }
+
+            return (double) sum * scales[rowA] * scales[rowB];
+        }
+
+        double sum = 0;
+        for(int dimension = 0; dimension < dimensions; dimension++) {
+
+            sum += (double) HALF_TO_FLOAT[halves[offsetA + dimension] & 0xffff]
+                    * HALF_TO_FLOAT[halves[offsetB + dimension] & 0xffff];
+        }
+
+        return sum;
+    }
+
+    /**
+     * @param row some row of this slab
+     * @param data buffer holding a full precision vector
+     * @param offset position of that vector in `data`
+     * @return the dot product of the quantized vector at `row`
+     * and the given full precision vector
+     */
+    public double dot(int row, FloatBuffer data, int offset) {
+
+        int rowOffset = row * dimensions;
+        double sum = 0;
+
+        if(type == Type.INT8) {
+
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                sum += codes[rowOffset + dimension] * data.get(offset + dimension);
+            }
+
+            return sum * scales[row];
+        }
+
+        for(int dimension = 0; dimension < dimensions; dimension++) {
+
+            sum += (double) HALF_TO_FLOAT[halves[rowOffset + dimension] & 0xffff]
+                    * data.get(offset + dimension);
+        }
+
+        return sum;
+    }
+
+    /**
+     * @return the number of bytes used by the components of this slab
+     */
+    public long get_bytes() {
+
+        if(type == Type.INT8) {
+
+            return codes.length + 4L * scales.length;
+        }
+
+        return 2L * halves.length;
+    }
+
+    /**
+     * @param value some float
+     * @return the nearest half precision float (ties to even), as
+     * its 16 bits. Values too large for half precision become infinite.
+     */
+    public static short to_half(float value) {
+
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int rawExponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        if(rawExponent == 0xff) {
+
+            // infinity or NaN
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+
+        int exponent = rawExponent - 127 + 15;
+
+        if(exponent >= 0x1f) {
+
+            return (short) (sign | 0x7c00);
+        }
+
+        if(exponent <= 0) {
+
+            // a subnormal half, or zero
+            if(exponent < -10) {
+
+                return (short) sign;
+            }
+
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+
+            if(rest > halfway || (rest == halfway && (half & 1) != 0)) {
+
+                half++;
+            }
+
+            return (short) (sign | half);
+        }
+
+        int half = (exponent << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1fff;
+
+        // rounding may carry into the exponent, which is still correct
+        if(rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+
+            half++;
+        }
+
+        return (short) (sign | half);
+    }
+
+    /**
+     * @param half the 16 bits of a half precision float
+     * @return the value of that half precision float
+     */
+    public static float to_float(int half) {
+
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+
+        if(exponent == 0) {
+
+            // subnormal, exactly mantissa * 2^-24
+            float value = mantissa * (1.0f / (1 << 24));
+            return sign != 0 ? -value : value;
+        }
+
+        if(exponent == 0x1f) {
+
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    private static float[] half_table() {
+
+        float[] result = new float[1 << 16];
+        for(int half = 0; half < result.length; half++) {
+
+            result[half] = to_float(half);
+        }
+
+        return result;
+    }
+}
@@ -6,6 +6,10 @@ public class QueryObject {
     boolean negated = false;
     WordVector vector;
 
+    // id of `word` in `idDictionary`, or -1 if it has not been looked up
+    int id = -1;
+    TermDictionary idDictionary;
+
     public WordVector get_vector() {
 
         return this.vector;
@@ -31,6 +35,8 @@ public class QueryObject {
     public void setWord(String word) {
 
         this.word = word;
+        this.id = -1;
+        this.idDictionary = null;
     }
     public void setNegated(boolean negated) {
 
@@ -45,4 +51,32 @@ public class QueryObject {
 
         return word;
     }
+
+    /**
+     * @param dictionary the dictionary of our embedding space
+     * @return the id of our word in the given dictionary, which
+     * gives it one if it has none yet. The id is kept for the next
+     * call, and looked up again if it is given another dictionary
+     * (the embedding space was changed).
+     */
+    public int get_id(TermDictionary dictionary) {
+
+        if(id < 0 || dictionary != idDictionary) {
+
+            id = dictionary.add(word);
+            idDictionary = dictionary;
+        }
+
+        return id;
+    }
+
+    /**
+     * @param id the id of our word in `dictionary`
+     * @param dictionary
+     */
+    public void set_id(int id, TermDictionary dictionary) {
+
+        this.id = id;
+        this.idDictionary = dictionary;
+    }
 }
@@ -0,0 +1,357 @@
+import org.apache.lucene.queryparser.classic.ParseException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The similarities of the objects and phrases of one StructuredQuery
+ * with the words of an embedding space, and their corpus densities,
+ * prepared once for a query (see StructuredDocumentScorer.prepare) and
+ * shared by every document it is scored against. A similarity is
+ * computed by the scorer the first time its word is met in a document,
+ * and read back from a map keyed by the word's id after that, so
+ * scoring a document comes down to lookups and multiply-adds.
+ *
+ * A basic object whose similarities are read from a row of a
+ * translation matrix also keeps that row (see get_object_row of the
+ * scorer), which is scored by walking its entries rather than the
+ * words of the document.
+ *
+ * A table holds one map for each phrase and each basic object without
+ * a row of its query, which grows with the words scored against it
+ * rather than with the vocabulary of the space. It is not thread-safe:
+ * like the scorer, it is meant for one thread.
+ */
+public class QuerySimilarityTable {
+
+    StructuredDocumentScorer scorer;
+    StructuredQuery query;
+    StructuredDocumentScorer.CalculationType type;
+
+    // number of words of the space, the words with a similarity
+    int words;
+
+    // similarity of each phrase and basic object with the words met so far,
+    // by id (objects with a row have none)
+    SimilarityMap[] phraseSimilarities;
+    SimilarityMap[] objectSimilarities;
+
+    // the row of each basic object, null for objects without one
+    SparseRow[] objectRows;
+    boolean hasRows;
+
+    // p(phrase | corpus) and p(object | corpus)
+    double[] phraseDensities;
+    double[] objectDensities;
+
+    /**
+     * @param scorer the scorer whose similarities we hold
+     * @param query the query we hold similarities for
+     * @param type the type of calculation the similarities come from
+     * @throws IOException
+     * @throws ParseException
+     */
+    public QuerySimilarityTable(StructuredDocumentScorer scorer, StructuredQuery query,
+                                StructuredDocumentScorer.CalculationType type) throws IOException, ParseException {
+
+        this.scorer = scorer;
+        this.query = query;
+        this.type = type;
+
+        words = scorer.embeddingSpace.get_size();
+
+        phraseSimilarities = new SimilarityMap[query.phrases.size()];
+        phraseDensities = new double[phraseSimilarities.length];
+        for(int index = 0; index < phraseSimilarities.length; index++) {
+
+            phraseSimilarities[index] = new SimilarityMap();
+            phraseDensities[index] = scorer.get_phrase_corpus_density(query.phrases.get(index));
+        }
+
+        objectSimilarities = new SimilarityMap[query.basic.size()];
+        objectDensities = new double[objectSimilarities.length];
+        objectRows = new SparseRow[objectSimilarities.length];
+        for(int index = 0; index < objectSimilarities.length; index++) {
+
+            objectRows[index] = scorer.get_object_row(query.basic.get(index), type);
+            hasRows |= objectRows[index] != null;
+
+            if(objectRows[index] == null) {
+
+                objectSimilarities[index] = new SimilarityMap();
+            }
+            objectDensities[index] = scorer.get_object_corpus_density(query.basic.get(index));
+        }
+    }
+
+    /**
+     * @param phrase index of a phrase of our query
+     * @param term id of some word, or -1
+     * @return the similarity of the phrase with the word, as
+     * get_phrase_similarity of our scorer gives it
+     */
+    public double get_phrase_similarity(int phrase, int term) {
+
+        if(term < 0 || term >= words) {
+
+            // words without a vector are not similar to anything
+            return 0.0;
+        }
+
+        SimilarityMap similarities = phraseSimilarities[phrase];
+        double similarity = similarities.get(term);
+        if(similarity != similarity) {
+
+            similarity = scorer.get_phrase_similarity(term, query.phrases.get(phrase), type);
+            similarities.put(term, similarity);
+        }
+
+        return similarity;
+    }
+
+    /**
+     * @param object index of a basic object of our query
+     * @param term id of some word, or -1
+     * @return the similarity of the object with the word, as
+     * get_object_similarity of our scorer gives it
+     */
+    public double get_object_similarity(int object, int term) {
+
+        if(objectRows[object] != null) {
+
+            // the row holds every similarity of the object
+            return objectRows[object].get(term);
+        }
+
+        if(term < 0 || term >= words) {
+
+            return 0.0;
+        }
+
+        SimilarityMap similarities = objectSimilarities[object];
+        double similarity = similarities.get(term);
+        if(similarity != similarity) {
+
+            similarity = scorer.get_object_similarity(term, query.basic.get(object), type);
+            similarities.put(term, similarity);
+        }
+
+        return similarity;
+    }
+
+    /**
+     * @param phrase index of a phrase of our query
+     * @param tokens id of each word of a document
+     * @param densities p(word | document) of each word of the document
+     * @return the similarity of the phrase with each word of the
+     * document, weighted by its density
+     */
+    public double phrase_probability(int phrase, int[] tokens, double[] densities) {
+
+        double result = 0.0;
+        for(int index = 0; index < tokens.length; index++) {
+
+            result += get_phrase_similarity(phrase, tokens[index]) * densities[index];
+        }
+
+        return result;
+    }
+
+    /**
+     * @param object index of a basic object of our query
+     * @param tokens id of each word of a document
+     * @param densities p(word | document) of each word of the document
+     * @return the similarity of the object with each word of the
+     * document, weighted by its density
+     */
+    public double object_probability(int object, int[] tokens, double[] densities) {
+
+        double result = 0.0;
+        for(int index = 0; index < tokens.length; index++) {
+
+            result += get_object_similarity(object, tokens[index]) * densities[index];
+        }
+
+        return result;
+    }
+
+    /**
+     * @param object index of a basic object of our query
+     * @param terms the distinct ids of the words of a document, sorted
+     * @param counts number of occurrences of each word in the document
+     * @param wordCount number of words in the document
+     * @return the similarity of the object with each word of the
+     * document, weighted by its density, as object_probability gives it
+     * (up to rounding), from the entries of the object's row
+     */
+    public double row_probability(int object, int[] terms, int[] counts, int wordCount) {
+
+        SparseRow row = objectRows[object];
+        int[] ids = row.ids;
+        double[] similarities = row.similarities;
+
+        // both are sorted, so each search starts past the last one
+        double result = 0.0;
+        int from = 0;
+        for(int entry = 0; entry < ids.length && from < terms.length; entry++) {
+
+            int index = Arrays.binarySearch(terms, from, terms.length, ids[entry]);
+            if(index >= 0) {
+
+                // each occurrence adds its p(word | document)
+                result += similarities[entry] * ((double) counts[index] * counts[index] / wordCount);
+                from = index + 1;
+            } else {
+
+                from = -index - 1;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return true if the given basic object is scored from its row
+     */
+    public boolean has_object_row(int object) {
+
+        return objectRows[object] != null;
+    }
+
+    /**
+     * @return true if any basic object of our query has a row
+     */
+    public boolean has_rows() {
+
+        return this.hasRows;
+    }
+
+    /**
+     * @return true if some part of our query is scored against each
+     * word of a document: a phrase, or a basic object without a row
+     */
+    public boolean needs_tokens() {
+
+        if(!query.phrases.isEmpty()) {
+
+            return true;
+        }
+
+        for(SparseRow row : objectRows) {
+
+            if(row == null) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public double get_phrase_density(int phrase) {
+
+        return phraseDensities[phrase];
+    }
+
+    public double get_object_density(int object) {
+
+        return objectDensities[object];
+    }
+
+    public StructuredQuery get_query() {
+
+        return this.query;
+    }
+
+    public StructuredDocumentScorer.CalculationType get_type() {
+
+        return this.type;
+    }
+
+    /**
+     * Similarities by word id, with open addressing over primitive
+     * arrays, probing linearly from the id's hash
+     */
+    static class SimilarityMap {
+
+        // marks an empty slot (ids are never negative)
+        static final int EMPTY = -1;
+
+        int[] keys;
+        double[] values;
+        int size;
+
+        SimilarityMap() {
+
+            keys = new int[16];
+            values = new double[16];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /**
+         * @return the similarity put for `id`, or NaN if there is none
+         */
+        double get(int id) {
+
+            int slot = slot(keys, id);
+            return keys[slot] == id ? values[slot] : Double.NaN;
+        }
+
+        void put(int id, double similarity) {
+
+            int slot = slot(keys, id);
+            if(keys[slot] == id) {
+
+                values[slot] = similarity;
+                return;
+            }
+
+            // keep the table at most half full
+            if(2 * (size + 1) > keys.length) {
+
+                grow();
+                slot = slot(keys, id);
+            }
+
+            keys[slot] = id;
+            values[slot] = similarity;
+            size++;
+        }
+
+        private void grow() {
+
+            int[] oldKeys = keys;
+            double[] oldValues = values;
+
+            keys = new int[2 * oldKeys.length];
+            values = new double[keys.length];
+            Arrays.fill(keys, EMPTY);
+
+            for(int old = 0; old < oldKeys.length; old++) {
+
+                if(oldKeys[old] != EMPTY) {
+
+                    int slot = slot(keys, oldKeys[old]);
+                    keys[slot] = oldKeys[old];
+                    values[slot] = oldValues[old];
+                }
+            }
+        }
+
+        /**
+         * @return the slot of `id` in `keys`, or the empty slot it would go in
+         */
+        private static int slot(int[] keys, int id) {
+
+            int mask = keys.length - 1;
+            int hash = id * 0x9E3779B9;
+
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while(keys[slot] != id && keys[slot] != EMPTY) {
+
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,693 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds a thresholded translation matrix straight to a MatrixFile,
+ * without ever holding the whole matrix in memory.
+ *
+ * The vocabulary is split into shards of consecutive rows, built in
+ * order. As in BlockedSimilarityBuilder, each pair of words is compared
+ * once: the blocks of a shard are compared with themselves and every
+ * following block on a fork-join pool. An entry whose column falls in a
+ * later shard is also written, transposed, to a spill file for that
+ * shard, which reads it back when its turn comes. The complete rows of
+ * a shard are held in memory (so `rowsPerShard` bounds the memory used),
+ * sorted, and written to a shard file of their own, which is only given
+ * its final name once it and its spill files are complete. Unless given,
+ * the size of shards, and the number of blocks in flight, are chosen
+ * from the density of the first block and the memory left in the heap.
+ *
+ * A checkpoint file lists the finished shards, so a build that was
+ * interrupted resumes from the first unfinished shard. It starts with
+ * the settings of the build and a hash of the words and vectors, so
+ * shards of another embedding space are never merged. Once every shard
+ * is done, they are merged into one matrix file, and removed.
+ */
+public class ShardedMatrixBuilder {
+
+    // share of the free heap the shard and the blocks in flight may take
+    // when sized from memory
+    static final double MEMORY_SHARE = 0.5;
+
+    // bytes an entry takes in the rows of a shard (int column, float
+    // similarity) and in the entries of a block (int row, int column,
+    // double similarity), twice over as both grow by doubling
+    static final int SHARD_ENTRY_BYTES = 2 * 8;
+    static final int BLOCK_ENTRY_BYTES = 2 * 16;
+
+    // a shard keeps a spill file open for each later shard
+    static final int MAX_SHARDS = 512;
+
+    // shards of `filePath` are kept in `filePath` + SHARD_DIRECTORY_SUFFIX
+    public static final String SHARD_DIRECTORY_SUFFIX = ".shards";
+
+    static final String CHECKPOINT_FILE = "checkpoint";
+
+    BlockedSimilarityBuilder builder;
+    VectorSlab slab;
+    int size;
+    int parallelism;
+
+    // rows of each shard as asked for, 0 to size them from memory
+    int requestedRowsPerShard;
+
+    // rows of each shard, and blocks in flight, of the current build
+    int rowsPerShard;
+    int blocksInFlight;
+
+    /**
+     * Sizes shards from the memory left in the heap
+     * @param slab the vectors we will compare
+     */
+    public ShardedMatrixBuilder(VectorSlab slab) {
+
+        this(slab, 0, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param slab the vectors we will compare
+     * @param rowsPerShard the number of rows in each shard, rounded up
+     *                     to a multiple of BlockedSimilarityBuilder.BLOCK_SIZE,
+     *                     or 0 to size shards from the memory left in the heap
+     * @param parallelism the number of threads we will compare with
+     */
+    public ShardedMatrixBuilder(VectorSlab slab, int rowsPerShard, int parallelism) {
+
+        int blockSize = BlockedSimilarityBuilder.BLOCK_SIZE;
+
+        this.builder = new BlockedSimilarityBuilder(slab, parallelism);
+        this.slab = slab;
+        this.size = slab.get_size();
+        this.requestedRowsPerShard = rowsPerShard <= 0 ? 0
+                : (rowsPerShard + blockSize - 1) / blockSize * blockSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Writes to `filePath` a matrix holding the similarity of every pair of
+     * words that is greater than or equal to `minSimilarity`, with the
+     * semantics of BlockedSimilarityBuilder.build. If a build of the same
+     * matrix was interrupted, the shards it finished are reused.
+     * @param minSimilarity the lowest similarity we will record... use
+     *                      Double.NEGATIVE_INFINITY to record every pair
+     * @param filePath location of the matrix file we will write
+     * @throws IOException if writing fails, or if the shards found were
+     * started with other settings
+     */
+    public void build(double minSimilarity, String filePath) throws IOException {
+
+        File directory = new File(filePath + SHARD_DIRECTORY_SUFFIX);
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+
+            throw new IOException("Could not create " + directory);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Writer checkpoint = null;
+
+        try {
+
+            size_shards(pool, minSimilarity, directory);
+
+            int shards = (size + rowsPerShard - 1) / rowsPerShard;
+            HashSet<Integer> finished = read_checkpoint(directory,
+                    settings(minSimilarity));
+
+            checkpoint = new FileWriter(new File(directory, CHECKPOINT_FILE), true);
+
+            for(int shard = 0; shard < shards; shard++) {
+
+                double percent = (shard / (double) shards) * 100.00;
+                System.out.print("Progress: ");
+                System.out.print(percent);
+                System.out.println("%");
+
+                if(finished.contains(shard) && shard_file(directory, shard).isFile()) {
+
+                    System.out.println("Shard " + shard + " was already built");
+                    continue;
+                }
+
+                write_shard(pool, shard, shards, minSimilarity, directory);
+
+                checkpoint.write(shard + "\n");
+                checkpoint.flush();
+
+                // the entries other shards spilled to this one are in it now
+                for(int source = 0; source < shard; source++) {
+
+                    spill_file(directory, shard, source).delete();
+                }
+            }
+
+            checkpoint.close();
+            checkpoint = null;
+
+            System.out.println("Merging shards...");
+            merge(directory, shards, filePath);
+
+            for(int shard = 0; shard < shards; shard++) {
+
+                shard_file(directory, shard).delete();
+                for(int source = 0; source < shard; source++) {
+
+                    spill_file(directory, shard, source).delete();
+                }
+            }
+            new File(directory, CHECKPOINT_FILE).delete();
+            directory.delete();
+        } finally {
+
+            pool.shutdown();
+            if(checkpoint != null) {
+
+                checkpoint.close();
+            }
+        }
+    }
+
+    /**
+     * Sets rowsPerShard and blocksInFlight for a build. The entries of
+     * each row are estimated from the first block, whose words (the most
+     * frequent ones in the vocabularies we read) have more neighbours
+     * than most, so the estimate errs on the dense side. A shard and the
+     * blocks in flight then share MEMORY_SHARE of the free heap, the
+     * blocks taking at most half of it. A build resumed from a checkpoint
+     * keeps the shards it was started with, whatever the heap is now.
+     */
+    private void size_shards(ForkJoinPool pool, double minSimilarity,
+                             File directory) throws IOException {
+
+        int blockSize = BlockedSimilarityBuilder.BLOCK_SIZE;
+
+        // the first block holds nearly every entry of its rows: those it
+        // leaves out are its pairs of rows in the other order
+        double entriesPerRow = 1.0;
+        if(size > 0) {
+
+            BlockedSimilarityBuilder.Entries first
+                    = pool.invoke(builder.new ThresholdTask(0, minSimilarity));
+            entriesPerRow = Math.max(1.0, first.size / (double) Math.min(size, blockSize));
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        double budget = MEMORY_SHARE * (runtime.maxMemory()
+                - (runtime.totalMemory() - runtime.freeMemory()));
+
+        double blockBytes = blockSize * entriesPerRow * BLOCK_ENTRY_BYTES;
+        blocksInFlight = (int) Math.max(1, Math.min(2 * parallelism, budget / 2 / blockBytes));
+
+        rowsPerShard = requestedRowsPerShard;
+        if(rowsPerShard == 0) {
+
+            rowsPerShard = checkpoint_rows_per_shard(directory);
+        }
+        if(rowsPerShard == 0) {
+
+            // each row also has its two arrays, and a count
+            double rowBytes = entriesPerRow * SHARD_ENTRY_BYTES + 2 * 16 + 4;
+            double rows = (budget - blocksInFlight * blockBytes) / rowBytes;
+
+            if(rows >= size) {
+
+                // one shard holds every row
+                rowsPerShard = (size + blockSize - 1) / blockSize * blockSize;
+            } else {
+
+                rowsPerShard = Math.max(blockSize, (int) rows / blockSize * blockSize);
+            }
+
+            int fewestRows = ((size + MAX_SHARDS - 1) / MAX_SHARDS + blockSize - 1) / blockSize * blockSize;
+            if(rowsPerShard < fewestRows) {
+
+                System.out.println("The heap is too small for shards of this matrix, "
+                        + "building " + MAX_SHARDS + " shards anyway");
+                rowsPerShard = fewestRows;
+            }
+        }
+
+        System.out.println("Shards of " + rowsPerShard + " rows, " + blocksInFlight
+                + " blocks in flight, about " + Math.round(entriesPerRow) + " entries per row");
+    }
+
+    /**
+     * @return the rows of each shard of the build whose checkpoint is in
+     * `directory`, or 0 if there is none
+     */
+    private static int checkpoint_rows_per_shard(File directory) throws IOException {
+
+        File file = new File(directory, CHECKPOINT_FILE);
+        if(!file.isFile()) {
+
+            return 0;
+        }
+
+        BufferedReader br = new BufferedReader(new FileReader(file));
+
+        try {
+
+            String line = br.readLine();
+            String[] settings = line == null ? new String[0] : line.split(" ");
+
+            return settings.length > 2 ? Integer.parseInt(settings[2]) : 0;
+        } catch(NumberFormatException e) {
+
+            // read_checkpoint tells what the file holds
+            return 0;
+        } finally {
+
+            br.close();
+        }
+    }
+
+    /**
+     * @return the line identifying this build in a checkpoint file
+     */
+    private String settings(double minSimilarity) {
+
+        return size + " " + slab.get_dimensions() + " " + rowsPerShard + " " + minSimilarity
+                + " " + Long.toHexString(space_hash());
+    }
+
+    /**
+     * @return a hash of every word of our slab and of its vector, in order
+     */
+    private long space_hash() {
+
+        int dimensions = slab.get_dimensions();
+
+        long hash = 1125899906842597L;
+        for(int row = 0; row < size; row++) {
+
+            hash = 31 * hash + slab.get_term(row).hashCode();
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                hash = 31 * hash + Float.floatToIntBits(slab.get(row, dimension));
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * Reads the checkpoint file of `directory`, creating it if needed
+     * @return the shards listed as finished
+     * @throws IOException if the checkpoint was written for other settings
+     */
+    private HashSet<Integer> read_checkpoint(File directory, String settings) throws IOException {
+
+        HashSet<Integer> finished = new HashSet<>();
+        File file = new File(directory, CHECKPOINT_FILE);
+
+        if(!file.isFile()) {
+
+            Writer writer = new FileWriter(file);
+            writer.write(settings + "\n");
+            writer.close();
+            return finished;
+        }
+
+        BufferedReader br = new BufferedReader(new FileReader(file));
+
+        try {
+
+            String line = br.readLine();
+            if(!settings.equals(line)) {
+
+                throw new IOException(directory + " holds shards of another matrix ("
+                        + line + "), remove it to start over");
+            }
+
+            while((line = br.readLine()) != null) {
+
+                if(!line.isEmpty()) {
+
+                    finished.add(Integer.parseInt(line.trim()));
+                }
+            }
+        } finally {
+
+            br.close();
+        }
+
+        return finished;
+    }
+
+    private static File shard_file(File directory, int shard) {
+
+        return new File(directory, "shard-" + shard);
+    }
+
+    /**
+     * @return the file holding the entries of the rows of shard `target`
+     * found while building shard `source`
+     */
+    private static File spill_file(File directory, int target, int source) {
+
+        return new File(directory, "spill-" + target + "-" + source);
+    }
+
+    /**
+     * Computes the rows of one shard and writes them to its shard file.
+     * For each row, the file holds: int count, then `count` columns,
+     * then `count` similarities. The entries of the rows of later shards
+     * found on the way are written to their spill files, each entry as
+     * int row, int column, float similarity.
+     */
+    private void write_shard(ForkJoinPool pool, int shard, int shards, double minSimilarity,
+                             File directory) throws IOException {
+
+        int blockSize = BlockedSimilarityBuilder.BLOCK_SIZE;
+        int firstBlock = shard * rowsPerShard / blockSize;
+        int endBlock = Math.min((size + blockSize - 1) / blockSize,
+                (shard + 1) * rowsPerShard / blockSize);
+        int shardStart = shard * rowsPerShard;
+        int shardEnd = shardStart + shard_rows(shard);
+
+        Rows rows = new Rows(shard_rows(shard));
+
+        // the entries earlier shards found for our rows
+        for(int source = 0; source < shard; source++) {
+
+            File spill = spill_file(directory, shard, source);
+            if(!spill.isFile()) {
+
+                throw new IOException(spill + " is missing, remove " + directory
+                        + " to start over");
+            }
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(spill), 1 << 20));
+
+            try {
+
+                long count = spill.length() / 12;
+                for(long entry = 0; entry < count; entry++) {
+
+                    int row = in.readInt();
+                    int column = in.readInt();
+                    rows.add(row - shardStart, column, in.readFloat());
+                }
+            } finally {
+
+                in.close();
+            }
+        }
+
+        // one spill file for each later shard, even if it stays empty
+        DataOutputStream[] spills = new DataOutputStream[shards];
+        try {
+
+            for(int target = shard + 1; target < shards; target++) {
+
+                spills[target] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                        temporary_file(spill_file(directory, target, shard))), 1 << 16));
+            }
+
+            // we keep a few blocks ahead of the merge in flight
+            ArrayDeque<RecursiveTask<BlockedSimilarityBuilder.Entries>> pending = new ArrayDeque<>();
+            int nextBlock = firstBlock;
+
+            while(nextBlock < endBlock || !pending.isEmpty()) {
+
+                while(nextBlock < endBlock && pending.size() < blocksInFlight) {
+
+                    RecursiveTask<BlockedSimilarityBuilder.Entries> task
+                            = builder.new ThresholdTask(nextBlock++, minSimilarity);
+                    pool.execute(task);
+                    pending.add(task);
+                }
+
+                // each pair is found once, with its column at or past its row
+                BlockedSimilarityBuilder.Entries entries = pending.poll().join();
+                for(int index = 0; index < entries.size; index++) {
+
+                    int row = entries.rows[index];
+                    int column = entries.columns[index];
+                    float value = (float) entries.similarities[index];
+
+                    rows.add(row - shardStart, column, value);
+
+                    if(column == row) {
+
+                        continue;
+                    }
+
+                    if(column < shardEnd) {
+
+                        rows.add(column - shardStart, row, value);
+                    } else {
+
+                        DataOutputStream spill = spills[column / rowsPerShard];
+                        spill.writeInt(column);
+                        spill.writeInt(row);
+                        spill.writeFloat(value);
+                    }
+                }
+            }
+        } finally {
+
+            for(DataOutputStream spill : spills) {
+
+                if(spill != null) {
+
+                    spill.close();
+                }
+            }
+        }
+
+        File temporary = temporary_file(shard_file(directory, shard));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary), 1 << 20));
+
+        try {
+
+            for(int row = 0; row < rows.counts.length; row++) {
+
+                rows.sort(row);
+
+                int count = rows.counts[row];
+                out.writeInt(count);
+                for(int index = 0; index < count; index++) {
+
+                    out.writeInt(rows.columns[row][index]);
+                }
+                for(int index = 0; index < count; index++) {
+
+                    out.writeFloat(rows.values[row][index]);
+                }
+            }
+        } finally {
+
+            out.close();
+        }
+
+        // only complete shards (and spill files) have their final name,
+        // the shard file last, as it marks the shard as built
+        for(int target = shard + 1; target < shards; target++) {
+
+            File spill = spill_file(directory, target, shard);
+            Files.move(temporary_file(spill).toPath(), spill.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(temporary.toPath(), shard_file(directory, shard).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static File temporary_file(File file) {
+
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Concatenates the rows of every shard into one matrix file
+     */
+    private void merge(File directory, int shards, String filePath) throws IOException {
+
+        // a first pass counts the entries, so we know where each section goes
+        long entries = 0;
+        for(int shard = 0; shard < shards; shard++) {
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(shard_file(directory, shard)), 1 << 20));
+
+            try {
+
+                int rows = shard_rows(shard);
+                for(int row = 0; row < rows; row++) {
+
+                    int count = in.readInt();
+                    entries += count;
+                    skip_fully(in, 8L * count);
+                }
+            } finally {
+
+                in.close();
+            }
+        }
+
+        String[] terms = new String[size];
+        for(int row = 0; row < size; row++) {
+
+            terms[row] = slab.get_term(row);
+        }
+
+        long[] sections = MatrixFile.layout(terms, entries);
+
+        FileChannel channel = FileChannel.open(new File(filePath).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        try {
+
+            MatrixFile.write_header(channel, size, entries, sections);
+            MatrixFile.write_terms(channel, terms, sections[0]);
+
+            ByteBuffer rowBuffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer columnBuffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer valueBuffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+            long rowPosition = sections[1];
+            long columnPosition = sections[2];
+            long valuePosition = sections[3];
+            long entry = 0;
+
+            for(int shard = 0; shard < shards; shard++) {
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(shard_file(directory, shard)), 1 << 20));
+
+                try {
+
+                    int rows = shard_rows(shard);
+                    for(int row = 0; row < rows; row++) {
+
+                        if(!rowBuffer.hasRemaining()) {
+
+                            rowPosition = MatrixFile.write_at(channel, rowBuffer, rowPosition);
+                        }
+                        rowBuffer.putLong(entry);
+
+                        int count = in.readInt();
+                        for(int index = 0; index < count; index++) {
+
+                            if(!columnBuffer.hasRemaining()) {
+
+                                columnPosition = MatrixFile.write_at(channel, columnBuffer, columnPosition);
+                            }
+                            columnBuffer.putInt(in.readInt());
+                        }
+                        for(int index = 0; index < count; index++) {
+
+                            if(!valueBuffer.hasRemaining()) {
+
+                                valuePosition = MatrixFile.write_at(channel, valueBuffer, valuePosition);
+                            }
+                            valueBuffer.putFloat(in.readFloat());
+                        }
+
+                        entry += count;
+                    }
+                } finally {
+
+                    in.close();
+                }
+            }
+
+            if(!rowBuffer.hasRemaining()) {
+
+                rowPosition = MatrixFile.write_at(channel, rowBuffer, rowPosition);
+            }
+            rowBuffer.putLong(entry);
+
+            MatrixFile.write_at(channel, rowBuffer, rowPosition);
+            MatrixFile.write_at(channel, columnBuffer, columnPosition);
+            MatrixFile.write_at(channel, valueBuffer, valuePosition);
+        } finally {
+
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the number of rows in the given shard
+     */
+    private int shard_rows(int shard) {
+
+        return Math.min(size, (shard + 1) * rowsPerShard) - shard * rowsPerShard;
+    }
+
+    private static void skip_fully(DataInputStream in, long bytes) throws IOException {
+
+        while(bytes > 0) {
+
+            long skipped = in.skip(bytes);
+            if(skipped <= 0) {
+
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * Growable (column, similarity) lists of a few rows
+     */
+    static class Rows {
+
+        int[][] columns;
+        float[][] values;
+        int[] counts;
+
+        Rows(int rows) {
+
+            columns = new int[rows][16];
+            values = new float[rows][16];
+            counts = new int[rows];
+        }
+
+        void add(int row, int column, float value) {
+
+            int count = counts[row];
+            if(count == columns[row].length) {
+
+                columns[row] = Arrays.copyOf(columns[row], count * 2);
+                values[row] = Arrays.copyOf(values[row], count * 2);
+            }
+
+            columns[row][count] = column;
+            values[row][count] = value;
+            counts[row]++;
+        }
+
+        /**
+         * Sorts the entries of `row` by column
+         */
+        void sort(int row) {
+
+            int count = counts[row];
+            long[] entries = new long[count];
+            for(int index = 0; index < count; index++) {
+
+                entries[index] = ((long) columns[row][index] << 32)
+                        | (Float.floatToRawIntBits(values[row][index]) & 0xFFFFFFFFL);
+            }
+            Arrays.sort(entries);
+
+            for(int index = 0; index < count; index++) {
+
+                columns[row][index] = (int) (entries[index] >>> 32);
+                values[row][index] = Float.intBitsToFloat((int) entries[index]);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+import java.nio.FloatBuffer;
+
+/**
+ * Placeholder for the SIMD dot-product kernel. The real implementation
+ * lives in src/main/java16 and is packaged in the multi-release jar
+ * (under META-INF/versions/16), where it replaces this class on Java 16+.
+ * This one reports itself unavailable, and computes with the scalar
+ * loop of VectorKernels if it is called anyway.
+ */
+class SimdDotKernel {
+
+    static boolean available() {
+
+        return false;
+    }
+
+    static double dot(float[] contents1, int offset1,
+                      float[] contents2, int offset2,
+                      int dimensions) {
+
+        return VectorKernels.scalar_dot(contents1, offset1, contents2, offset2, dimensions);
+    }
+
+    static double dot(FloatBuffer data1, int offset1,
+                      FloatBuffer data2, int offset2,
+                      int dimensions) {
+
+        return VectorKernels.scalar_dot(data1, offset1, data2, offset2, dimensions);
+    }
+
+    static void dot_rows(float[] contents1, int offset1,
+                         float[] contents2, int offset2,
+                         int count, int dimensions, double[] result) {
+
+        VectorKernels.scalar_dot_rows(contents1, offset1, contents2, offset2, count, dimensions, result);
+    }
+}
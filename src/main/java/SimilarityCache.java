@@ -0,0 +1,207 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Computes thresholded cosine similarities between words of an
+ * EmbeddingSpace on demand, keeping the most recently used ones, so
+ * StructuredDocumentScorer can score without any TranslationMatrix.
+ *
+ * The cache holds at most `capacity` pairs, in sets of WAYS pairs: a
+ * pair can only be stored in the set its hash picks, where the least
+ * recently used pair of the set is evicted to make room. Sets are
+ * guarded by a fixed number of locks, so threads looking up different
+ * pairs rarely wait on each other, and similarities are computed
+ * outside of any lock. Both the keys and the values are primitive.
+ *
+ * Similarities are symmetric, so (X, Y) and (Y, X) share an entry.
+ */
+public class SimilarityCache {
+
+    // number of pairs in each set
+    static final int WAYS = 4;
+
+    // marks an empty slot (no pair of rows has this key)
+    static final long EMPTY = -1L;
+
+    VectorSlab slab;
+    double minSimilarity;
+
+    // the pairs of each set, most recently used first
+    long[] keys;
+    float[] values;
+    int setMask;
+
+    Object[] locks;
+    int lockMask;
+
+    LongAdder hits = new LongAdder();
+    LongAdder misses = new LongAdder();
+    LongAdder evictions = new LongAdder();
+
+    /**
+     * @param space the vectors we compute similarities from
+     * @param minSimilarity similarities lower than this are zero,
+     *                      as if they were not in a translation matrix
+     * @param capacity the number of pairs we keep, rounded up to
+     *                 a power of two
+     */
+    public SimilarityCache(EmbeddingSpace space, double minSimilarity, int capacity) {
+
+        this(space, minSimilarity, capacity, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param space the vectors we compute similarities from
+     * @param minSimilarity similarities lower than this are zero
+     * @param capacity the number of pairs we keep, rounded up to
+     *                 a power of two
+     * @param concurrency the number of locks guarding the sets, rounded
+     *                    up to a power of two
+     */
+    public SimilarityCache(EmbeddingSpace space, double minSimilarity, int capacity, int concurrency) {
+
+        this.slab = space.get_slab();
+        this.minSimilarity = minSimilarity;
+
+        int sets = power_of_two(Math.max(1, (capacity + WAYS - 1) / WAYS));
+        keys = new long[sets * WAYS];
+        values = new float[keys.length];
+        Arrays.fill(keys, EMPTY);
+        setMask = sets - 1;
+
+        locks = new Object[Math.min(sets, power_of_two(Math.max(1, concurrency)))];
+        for(int lock = 0; lock < locks.length; lock++) {
+
+            locks[lock] = new Object();
+        }
+        lockMask = locks.length - 1;
+    }
+
+    /**
+     * @param rowA some row of our space
+     * @param rowB some row of our space
+     * @return the cosine similarity of the two rows if it is at least our
+     * minimum similarity, otherwise zero. Negative similarities are zero.
+     */
+    public double get_similarity(int rowA, int rowB) {
+
+        long key = rowA <= rowB
+                ? ((long) rowA << 32) | rowB
+                : ((long) rowB << 32) | rowA;
+
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int set = (int) (hash >>> 32) & setMask;
+        int base = set * WAYS;
+
+        synchronized(locks[set & lockMask]) {
+
+            for(int way = 0; way < WAYS; way++) {
+
+                if(keys[base + way] == key) {
+
+                    float value = values[base + way];
+                    move_to_front(base, way, key, value);
+                    hits.increment();
+                    return value;
+                }
+            }
+        }
+
+        misses.increment();
+        float value = (float) compute(rowA, rowB);
+
+        synchronized(locks[set & lockMask]) {
+
+            // another thread may have stored the pair meanwhile
+            int way = 0;
+            while(way < WAYS - 1 && keys[base + way] != key) {
+
+                way++;
+            }
+
+            if(keys[base + way] != key && keys[base + way] != EMPTY) {
+
+                evictions.increment();
+            }
+
+            move_to_front(base, way, key, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Places (key, value) first in its set, shifting the pairs
+     * before `way` down by one over the pair at `way`
+     */
+    private void move_to_front(int base, int way, long key, float value) {
+
+        for(int index = base + way; index > base; index--) {
+
+            keys[index] = keys[index - 1];
+            values[index] = values[index - 1];
+        }
+
+        keys[base] = key;
+        values[base] = value;
+    }
+
+    /**
+     * @return the thresholded cosine similarity of two rows
+     */
+    double compute(int rowA, int rowB) {
+
+        double similarity = slab.dot(rowA, rowB) / (slab.get_norm(rowA) * slab.get_norm(rowB));
+
+        if(!(similarity >= 0.0)) {
+
+            // negative, or one of the vectors has no length
+            return 0.0;
+        }
+
+        return similarity >= minSimilarity ? similarity : 0.0;
+    }
+
+    public long get_hits() {
+
+        return hits.sum();
+    }
+
+    public long get_misses() {
+
+        return misses.sum();
+    }
+
+    /**
+     * @return the share of lookups answered from the cache
+     */
+    public double get_hit_rate() {
+
+        long hits = get_hits();
+        long lookups = hits + get_misses();
+        return lookups == 0 ? 0.0 : hits / (double) lookups;
+    }
+
+    /**
+     * @return the number of pairs this cache can hold
+     */
+    public int get_capacity() {
+
+        return keys.length;
+    }
+
+    /**
+     * Prints the hits, misses and evictions of this cache
+     */
+    public void report() {
+
+        System.out.println("Similarity cache: " + get_hits() + " hits, " + get_misses()
+                + " misses (hit rate " + (get_hit_rate() * 100.00) + "%), "
+                + evictions.sum() + " evictions, capacity " + get_capacity());
+    }
+
+    private static int power_of_two(int value) {
+
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+}
@@ -0,0 +1,183 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of (row, similarity) pairs, kept in primitive
+ * arrays. The pair with the lowest similarity is on top. Used as a
+ * bounded heap to select the `k` most similar rows out of many
+ * (see `offer`), and, with negated similarities, as a max-heap.
+ *
+ * Pairs of equal similarity are ordered by row, the lower row being
+ * the more similar, so the pairs a bounded heap keeps never depend on
+ * the order they were offered in (see MatrixFile.prune).
+ */
+public class SimilarityHeap {
+
+    int[] rows;
+    double[] similarities;
+    int size;
+
+    public SimilarityHeap(int initialCapacity) {
+
+        rows = new int[Math.max(1, initialCapacity)];
+        similarities = new double[rows.length];
+        size = 0;
+    }
+
+    /**
+     * Adds the given pair to this heap
+     * @param row
+     * @param similarity
+     */
+    public void push(int row, double similarity) {
+
+        if(size == rows.length) {
+
+            rows = Arrays.copyOf(rows, size * 2);
+            similarities = Arrays.copyOf(similarities, size * 2);
+        }
+
+        int index = size++;
+
+        // sift up
+        while(index > 0) {
+
+            int parent = (index - 1) >>> 1;
+            if(!less(similarity, row, similarities[parent], rows[parent])) {
+
+                break;
+            }
+
+            rows[index] = rows[parent];
+            similarities[index] = similarities[parent];
+            index = parent;
+        }
+
+        rows[index] = row;
+        similarities[index] = similarity;
+    }
+
+    /**
+     * Adds the given pair if this heap holds fewer than `capacity`
+     * pairs, or if it is more similar than the least similar pair,
+     * which it then replaces. Of pairs with equal similarities, the
+     * ones of the lowest rows are kept.
+     * @param row
+     * @param similarity
+     * @param capacity the largest number of pairs we keep
+     * @return true if the pair was added
+     */
+    public boolean offer(int row, double similarity, int capacity) {
+
+        if(size < capacity) {
+
+            push(row, similarity);
+            return true;
+        }
+
+        if(capacity == 0 || !less(similarities[0], rows[0], similarity, row)) {
+
+            return false;
+        }
+
+        replace_top(row, similarity);
+        return true;
+    }
+
+    /**
+     * Removes the least similar pair
+     */
+    public void pop() {
+
+        size--;
+        if(size > 0) {
+
+            replace_top(rows[size], similarities[size]);
+        }
+    }
+
+    private void replace_top(int row, double similarity) {
+
+        int index = 0;
+
+        // sift down
+        while(true) {
+
+            int child = 2 * index + 1;
+            if(child >= size) {
+
+                break;
+            }
+
+            if(child + 1 < size && less(similarities[child + 1], rows[child + 1],
+                    similarities[child], rows[child])) {
+
+                child++;
+            }
+
+            if(!less(similarities[child], rows[child], similarity, row)) {
+
+                break;
+            }
+
+            rows[index] = rows[child];
+            similarities[index] = similarities[child];
+            index = child;
+        }
+
+        rows[index] = row;
+        similarities[index] = similarity;
+    }
+
+    /**
+     * @return true if the pair (rowA, similarityA) is less similar than
+     * (rowB, similarityB)
+     */
+    static boolean less(double similarityA, int rowA, double similarityB, int rowB) {
+
+        return similarityA < similarityB || (similarityA == similarityB && rowA > rowB);
+    }
+
+    public int peek_row() {
+
+        return rows[0];
+    }
+
+    public double peek_similarity() {
+
+        return similarities[0];
+    }
+
+    public int size() {
+
+        return this.size;
+    }
+
+    public boolean is_empty() {
+
+        return size == 0;
+    }
+
+    public void clear() {
+
+        size = 0;
+    }
+
+    /**
+     * Empties this heap into the given arrays, most similar first
+     * @param rowsOut receives the rows
+     * @param similaritiesOut receives the similarities
+     * @return the number of pairs written
+     */
+    public int drain_descending(int[] rowsOut, double[] similaritiesOut) {
+
+        int count = size;
+        for(int index = count - 1; index >= 0; index--) {
+
+            rowsOut[index] = rows[0];
+            similaritiesOut[index] = similarities[0];
+            pop();
+        }
+
+        return count;
+    }
+}
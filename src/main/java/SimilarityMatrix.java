@@ -0,0 +1,182 @@
+import java.io.*;
+import java.util.List;
+
+/**
+ * The similarities of pairs of words, as scoring reads them: by word,
+ * by id, a whole row at once, or the most similar words of a row.
+ * TranslationMatrix holds similarities that can be put one by one;
+ * CsrTranslationMatrix (generated, or read from a file) and
+ * LazyTranslationMatrix only look them up.
+ *
+ * Ids are those of the dictionary given to set_dictionary. A matrix may
+ * also carry dissimilarities, the similarities of each word with the
+ * inverse of the others, which negated query terms are scored with.
+ */
+public abstract class SimilarityMatrix implements Serializable {
+
+    // suffix of the file the dissimilarities of a saved matrix are
+    // written to, next to it
+    public static final String DISSIMILARITY_EXTENSION = "_negated.bin";
+
+    // dictionary our rows are looked up by id with, if one was given
+    transient TermDictionary dictionary;
+
+    // similarities of each word with the inverse of the others, if
+    // they were generated
+    transient SimilarityMatrix dissimilarities;
+
+    /**
+     * @param X the first arbitrary word
+     * @param Y the second arbitrary word
+     * @return returns the similarity value of these words
+     * if it exists, otherwise, returns zero.
+     */
+    public abstract Double get_similarity(String X, String Y);
+
+    /**
+     * @param X id of the first word, in the dictionary given to set_dictionary
+     * @param Y id of the second word
+     * @return the similarity of the words of the given ids
+     * if it exists, otherwise, returns zero.
+     */
+    public abstract double get_similarity(int X, int Y);
+
+    /**
+     * @param X id of some word, in the dictionary given to set_dictionary
+     * @return the entries of the row of the word X, by the id of their
+     * word, so a row can be walked rather than probed word by word
+     */
+    public abstract SparseRow get_sparse_row(int X);
+
+    /**
+     * @param term some word
+     * @param k the number of neighbours we want
+     * @return the (at most) `k` words with the highest similarity to
+     * `term` in this matrix, most similar first
+     */
+    public abstract List<Neighbor> top_neighbors(String term, int k);
+
+    /**
+     * @param X id of some word, in the dictionary given to set_dictionary
+     * @return the entries of the row of the word X in our
+     * dissimilarities, or no entries if we have none
+     */
+    public SparseRow get_dissimilarity_row(int X) {
+
+        return dissimilarities == null ? SparseRow.EMPTY : dissimilarities.get_sparse_row(X);
+    }
+
+    /**
+     * @param X id of the first word, in the dictionary given to set_dictionary
+     * @param Y id of the second word
+     * @return the similarity of the word X with the inverse of the
+     * word Y (which is the similarity of a negated query term X with Y),
+     * if it was recorded in our dissimilarities, otherwise zero
+     */
+    public double get_dissimilarity(int X, int Y) {
+
+        return dissimilarities == null ? 0.0 : dissimilarities.get_similarity(X, Y);
+    }
+
+    /**
+     * @param dissimilarities a matrix generated by one of the
+     *                        generate_dissimilarity_matrix methods of
+     *                        EmbeddingSpace, saved and read with this one
+     */
+    public void set_dissimilarities(SimilarityMatrix dissimilarities) {
+
+        this.dissimilarities = dissimilarities;
+
+        if(dissimilarities != null && dictionary != null) {
+
+            dissimilarities.set_dictionary(dictionary);
+        }
+    }
+
+    /**
+     * @return our dissimilarities, or null if we have none
+     */
+    public SimilarityMatrix get_dissimilarities() {
+
+        return this.dissimilarities;
+    }
+
+    /**
+     * Sets the dictionary that get_similarity(int, int) looks our words
+     * up by id in
+     * @param dictionary the dictionary of our embedding space
+     */
+    public synchronized void set_dictionary(TermDictionary dictionary) {
+
+        this.dictionary = dictionary;
+    }
+
+    public TermDictionary get_dictionary() {
+
+        return this.dictionary;
+    }
+
+    /**
+     * Opens the translation matrix stored at `filePath`. A file in the
+     * MatrixFile format (written by `save`) is memory mapped; a matrix
+     * serialized by older versions of `save` is deserialized into the heap
+     * (MatrixFile.convert converts it to the MatrixFile format).
+     * If dissimilarities were saved with the matrix (at `filePath` +
+     * DISSIMILARITY_EXTENSION), they are mapped too.
+     * @param filePath location of a translation matrix
+     * @return a translation matrix that was stored
+     * at `filePath`
+     * @throws IOException if the file cannot be read, or holds no matrix
+     */
+    public static SimilarityMatrix read(String filePath) throws IOException {
+
+        System.out.println("Loading matrix from file...");
+        SimilarityMatrix spaceInFile;
+
+        if(MatrixFile.is_binary(filePath)) {
+
+            spaceInFile = MatrixFile.map(filePath);
+        } else {
+
+            ObjectInputStream ois = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(filePath)));
+
+            try {
+
+                spaceInFile = (SimilarityMatrix) ois.readObject();
+            } catch(ClassNotFoundException | ClassCastException e) {
+
+                throw new IOException(filePath + " does not hold a translation matrix", e);
+            } finally {
+
+                ois.close();
+            }
+        }
+
+        String dissimilarityPath = filePath + DISSIMILARITY_EXTENSION;
+        if(MatrixFile.is_binary(dissimilarityPath)) {
+
+            spaceInFile.set_dissimilarities(MatrixFile.map(dissimilarityPath));
+        }
+
+        System.out.println("Matrix loaded.");
+        return spaceInFile;
+    }
+
+    /**
+     * Writes the given matrix to `filePath` in the MatrixFile format,
+     * and its dissimilarities (if any) next to it
+     * @param matrix a matrix holding its similarities (not a lazy one)
+     * @param filePath
+     * @throws IOException
+     */
+    static void save(SimilarityMatrix matrix, String filePath) throws IOException {
+
+        MatrixFile.write(matrix, filePath);
+
+        if(matrix.dissimilarities != null) {
+
+            save(matrix.dissimilarities, filePath + DISSIMILARITY_EXTENSION);
+        }
+    }
+}
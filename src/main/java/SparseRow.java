@@ -0,0 +1,70 @@
+import java.util.Arrays;
+
+/**
+ * The non-zero entries of one row of a translation matrix, as the
+ * ids of their words in the dictionary the matrix was given (sorted)
+ * and their similarities. A row may share its arrays with the matrix
+ * it came from, so it must not be changed.
+ */
+public class SparseRow {
+
+    static final SparseRow EMPTY = new SparseRow(new int[0], new double[0]);
+
+    int[] ids;
+    double[] similarities;
+
+    public SparseRow(int[] ids, double[] similarities) {
+
+        this.ids = ids;
+        this.similarities = similarities;
+    }
+
+    /**
+     * @param ids id of the word of each entry, in any order
+     * @param similarities similarity of each entry
+     * @return a row of the given entries, sorted by id
+     */
+    public static SparseRow sorted(int[] ids, double[] similarities) {
+
+        long[] order = new long[ids.length];
+        for(int index = 0; index < order.length; index++) {
+
+            order[index] = ((long) ids[index] << 32) | index;
+        }
+        Arrays.sort(order);
+
+        int[] sortedIds = new int[order.length];
+        double[] sortedSimilarities = new double[order.length];
+        for(int index = 0; index < order.length; index++) {
+
+            sortedIds[index] = (int) (order[index] >>> 32);
+            sortedSimilarities[index] = similarities[(int) order[index]];
+        }
+
+        return new SparseRow(sortedIds, sortedSimilarities);
+    }
+
+    /**
+     * @return the similarity at the word of the given id, or zero
+     */
+    public double get(int id) {
+
+        int index = Arrays.binarySearch(ids, id);
+        return index >= 0 ? similarities[index] : 0.0;
+    }
+
+    public int[] get_ids() {
+
+        return this.ids;
+    }
+
+    public double[] get_similarities() {
+
+        return this.similarities;
+    }
+
+    public int size() {
+
+        return ids.length;
+    }
+}
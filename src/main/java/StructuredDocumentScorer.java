@@ -6,6 +6,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.ParseException;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -22,13 +23,17 @@ public class StructuredDocumentScorer {
      *
      * HASH_ALL: use locality sensitive hashing for calculating all similarities...
      * even those for which we have an entry in our translation matrix
+     *
+     * HAMMING: estimate cosine similarity from the Hamming distance between
+     * SuperBit bit signatures for calculating similarities not stored in our
+     * translation matrix
      */
     public enum CalculationType  {
-        HASH, COSINE, HASH_ALL
+        HASH, COSINE, HASH_ALL, HAMMING
     }
 
     IndexReader indexReader;
-    TranslationMatrix translations;
+    SimilarityMatrix translations;
     EmbeddingSpace embeddingSpace;
     LSHSuperBit lsh;
     Double mu;
@@ -41,9 +46,24 @@ public class StructuredDocumentScorer {
     Double tolerance;
     Integer counter = 0;
 
+    // if set, similarities of query terms that are not negated are
+    // computed (and cached) here rather than read from `translations`
+    SimilarityCache similarityCache;
+
+    // number of prepared queries we keep
+    static final int PREPARED_QUERIES = 4;
+
+    // similarity tables of the queries we prepared last, most
+    // recently used first, kept while we score documents against them
+    QuerySimilarityTable[] preparedTables = new QuerySimilarityTable[PREPARED_QUERIES];
+
+    // if true, query objects whose similarities come from a row of a
+    // translation matrix are scored by walking that row
+    boolean sparseScoring = true;
+
 
     public StructuredDocumentScorer(IndexReader indexReader,
-                                    TranslationMatrix translationMatrix,
+                                    SimilarityMatrix translationMatrix,
                                     EmbeddingSpace embeddingSpace,
                                     LSHSuperBit lsh,
                                     Double mu,
@@ -123,19 +143,21 @@ public class StructuredDocumentScorer {
 
         Double result = 0.0;
 
+        QuerySimilarityTable table = prepare(query, type);
+
         // we must score each part of the query against our chosen field
 
         Double documentProbability;
 
 
         // score regular terms
-        for(QueryObject queryObject : query.basic) {
+        for(int object = 0; object < query.basic.size(); object++) {
 
+            QueryObject queryObject = query.basic.get(object);
+            Double corpusDensity = table.get_object_density(object);
 
-            Double corpusDensity = get_object_corpus_density(queryObject);
-
-            documentProbability = (currentStats.get_count(queryObject.word).doubleValue()
-                    + mu * get_object_corpus_density(queryObject))
+            documentProbability = (currentStats.get_count(queryObject.get_id(embeddingSpace.get_dictionary()))
+                    + mu * corpusDensity)
                     / (currentStats.get_word_count() + mu);
 
             result += Math.log((documentProbability + beta) / (alpha *
@@ -172,27 +194,29 @@ public class StructuredDocumentScorer {
 
         // we must score each part of the query against our chosen field
 
-        // obtain desired document field, tokenized
-        List<String> tokens = AnalyzerUtils.tokenize(analyzer, text);
+        QuerySimilarityTable table = prepare(query, type);
+
+        // obtain desired document field, tokenized, unless every
+        // part of the query is scored from a row
+        int[] tokens = null;
+        double[] densities = null;
+        if(table.needs_tokens()) {
+
+            tokens = text_tokens(text, analyzer);
+            densities = token_densities(tokens);
+        }
 
         Double documentProbability;
 
         // score phrases
-        for(Phrase phrase : query.phrases) {
-
-            documentProbability = 0.0;
+        for(int phrase = 0; phrase < query.phrases.size(); phrase++) {
 
             // score each phrase against each term in our field
-            for(String term : tokens) {
-
-                documentProbability += get_phrase_similarity(term, phrase, type) *
-                        get_word_document_density(currentDoc, term);
-
-            }
+            documentProbability = table.phrase_probability(phrase, tokens, densities);
 
             // apply smoothing
 
-            Double corpusDensity = get_phrase_corpus_density(phrase);
+            Double corpusDensity = table.get_phrase_density(phrase);
 
             documentProbability = (Math.sqrt(documentProbability * docSize) + mu * corpusDensity)
                     / (currentStats.get_word_count() + mu);
@@ -203,20 +227,18 @@ public class StructuredDocumentScorer {
         }
 
         // score regular terms
-        for(QueryObject queryObject : query.basic) {
-
-            documentProbability = 0.0;
-            // score each object against each term in our field
-
-            for(String term : tokens) {
+        for(int object = 0; object < query.basic.size(); object++) {
 
-                documentProbability += get_object_similarity(term, queryObject, type) *
-                        get_word_document_density(currentDoc, term);
-            }
+            // score each object against each term in our field, or
+            // against each term of its row that is in our field
+            documentProbability = table.has_object_row(object)
+                    ? table.row_probability(object, currentStats.get_count_ids(),
+                            currentStats.get_id_counts(), currentStats.get_word_count())
+                    : table.object_probability(object, tokens, densities);
 
             // apply smoothing
 
-            Double corpusDensity = get_object_corpus_density(queryObject);
+            Double corpusDensity = table.get_object_density(object);
 
             documentProbability = (Math.sqrt(documentProbability * docSize) + mu * corpusDensity)
                     / (currentStats.get_word_count() + mu);
@@ -244,6 +266,8 @@ public class StructuredDocumentScorer {
      *             HASH uses LSH hash to compare new vectors
      *             COSINE uses cosine similarity to compare new vectors
      *             HASH_ALL uses hash to compare all vectors (not just new ones)
+     *             HAMMING uses bit signatures to estimate cosine similarity
+     *             of new vectors
      * @return the calculated score of this query on this document
      */
     public Double score_document_text(StructuredQuery query,
@@ -256,47 +280,204 @@ public class StructuredDocumentScorer {
 
         // we must score each part of the query against our chosen field
 
-        // obtain desired document field, tokenized
-        List<String> tokens = AnalyzerUtils.tokenize(analyzer, text);
+        QuerySimilarityTable table = prepare(query, type);
+
+        // obtain desired document field, tokenized, unless every
+        // part of the query is scored from a row
+        int[] tokens = null;
+        double[] densities = null;
+        if(table.needs_tokens()) {
+
+            tokens = text_tokens(text, analyzer);
+            densities = token_densities(tokens);
+        }
 
         Double documentProbability = 0.0;
 
         // score phrases
-        for(Phrase phrase : query.phrases) {
-
-            documentProbability = 0.0;
+        for(int phrase = 0; phrase < query.phrases.size(); phrase++) {
 
             // score each phrase against each term in our field
-            for(String term : tokens) {
+            documentProbability = table.phrase_probability(phrase, tokens, densities);
 
+            result += Math.log((Math.sqrt(documentProbability) + beta) / (alpha *
+                    table.get_phrase_density(phrase)));
+        }
 
-                documentProbability += get_phrase_similarity(term, phrase, type) *
-                        get_word_document_density(currentDoc, term);
+        // score regular terms
+        for(int object = 0; object < query.basic.size(); object++) {
 
-            }
+            // score each object against each term in our field, or
+            // against each term of its row that is in our field
+            documentProbability = table.has_object_row(object)
+                    ? table.row_probability(object, currentStats.get_count_ids(),
+                            currentStats.get_id_counts(), currentStats.get_word_count())
+                    : table.object_probability(object, tokens, densities);
 
             result += Math.log((Math.sqrt(documentProbability) + beta) / (alpha *
-                    get_phrase_corpus_density(phrase)));
+                    table.get_object_density(object)));
+
         }
 
-        // score regular terms
-        for(QueryObject queryObject : query.basic) {
 
-            documentProbability = 0.0;
-            // score each object against each term in our field
-            for(String term : tokens) {
+        result += Math.log(alpha) * (query.phrases.size() + query.basic.size());
+        return result;
+    }
+
+    /**
+     * Prepares the similarities of the given query for scoring: the
+     * table we return is kept, and given back when we are asked to
+     * prepare the same query with the same type of calculation, so the
+     * documents scored against a query share it. We keep the tables of
+     * the last PREPARED_QUERIES queries. Changing our translations,
+     * embeddings, hash or similarity cache drops them. A query must
+     * not be changed while it is prepared.
+     * @param query the query we will score documents against
+     * @param type the type of calculation we will be doing
+     * @return the similarity table of the given query
+     * @throws IOException
+     * @throws ParseException
+     */
+    public QuerySimilarityTable prepare(StructuredQuery query,
+                                        CalculationType type) throws IOException, ParseException {
+
+        int found = 0;
+        while(found < PREPARED_QUERIES - 1 && !(preparedTables[found] != null
+                && preparedTables[found].get_query() == query && preparedTables[found].get_type() == type)) {
+
+            found++;
+        }
+
+        QuerySimilarityTable table = preparedTables[found];
+        if(table == null || table.get_query() != query || table.get_type() != type) {
+
+            // the least recently used table is dropped
+            table = new QuerySimilarityTable(this, query, type);
+        }
+
+        // move the table to the front
+        System.arraycopy(preparedTables, 0, preparedTables, 1, found);
+        preparedTables[0] = table;
+
+        return table;
+    }
+
+    /**
+     * @param queryObject some object of a query
+     * @param type the type of calculation we will be doing
+     * @return the row of the translation matrix (or of its
+     * dissimilarities, if the object is negated) get_object_similarity
+     * reads the similarities of the object from, keeping the words we
+     * have a vector for, or null if they are not read from a row or
+     * sparse scoring is off
+     */
+    public SparseRow get_object_row(QueryObject queryObject, CalculationType type) {
+
+        if(!sparseScoring || type == CalculationType.HASH_ALL || translations == null) {
+
+            return null;
+        }
 
-                documentProbability += get_object_similarity(term, queryObject, type) *
-                        get_word_document_density(currentDoc, term);
+        int id = queryObject.get_id(embeddingSpace.get_dictionary());
+        SparseRow row;
+
+        if(queryObject.isNegated()) {
+
+            if(translations.get_dissimilarities() == null) {
+
+                return null;
             }
 
-            result += Math.log((Math.sqrt(documentProbability) + beta) / (alpha *
-                    get_object_corpus_density(queryObject)));
+            row = translations.get_dissimilarity_row(id);
+        } else if(similarityCache != null) {
+
+            return null;
+        } else {
 
+            row = translations.get_sparse_row(id);
         }
 
+        // words without a vector are not similar to anything
+        int kept = 0;
+        for(int entry = 0; entry < row.size(); entry++) {
+
+            if(embeddingSpace.has_vector(row.ids[entry])) {
+
+                kept++;
+            }
+        }
+
+        if(kept == row.size()) {
+
+            return row;
+        }
+
+        int[] ids = new int[kept];
+        double[] similarities = new double[kept];
+        kept = 0;
+        for(int entry = 0; entry < row.size(); entry++) {
+
+            if(embeddingSpace.has_vector(row.ids[entry])) {
+
+                ids[kept] = row.ids[entry];
+                similarities[kept] = row.similarities[entry];
+                kept++;
+            }
+        }
+
+        return new SparseRow(ids, similarities);
+    }
+
+    /**
+     * Has query objects whose similarities come from a row of our
+     * translation matrix be scored by walking the row (the default),
+     * or by comparing them with each word of the document, as other
+     * objects are. Both give the same scores up to rounding.
+     * @param sparseScoring
+     */
+    public void set_sparse_scoring(boolean sparseScoring) {
+
+        this.sparseScoring = sparseScoring;
+        Arrays.fill(preparedTables, null);
+    }
+
+    /**
+     * @param text the text we score, most often that of the current document
+     * @param analyzer analyzer we will process text with
+     * @return the id of each word of the given text, -1 for words without
+     * one, as counted by set_document if it is the text of the current
+     * document, rather than tokenized again
+     * @throws IOException
+     */
+    private int[] text_tokens(String text, Analyzer analyzer) throws IOException {
+
+        int[] counted = currentStats.get_token_ids();
+        if(counted != null && text.equals(currentStats.get_text())) {
+
+            return counted;
+        }
+
+        return term_ids(AnalyzerUtils.tokenize(analyzer, text));
+    }
+
+    /**
+     * @param tokens id of each word of the current document
+     * @return p(word | document) of each of the given words
+     */
+    private double[] token_densities(int[] tokens) {
+
+        if(tokens == currentStats.get_token_ids()) {
+
+            // the words of the current document, counted once
+            return currentStats.get_token_densities();
+        }
+
+        double[] result = new double[tokens.length];
+        for(int index = 0; index < tokens.length; index++) {
+
+            result[index] = get_word_document_density(tokens[index]);
+        }
 
-        result += Math.log(alpha) * (query.phrases.size() + query.basic.size());
         return result;
     }
 
@@ -304,9 +485,12 @@ public class StructuredDocumentScorer {
      * Calculates and returns the similarity between a QueryObject
      * and a term (word). If the given CalculationType (type) is
      * HASH_ALL, will use hash to calculate. Otherwise, the similarity
-     * will be obtain from the translation matrix if not negated, and if
-     * the query object is negated, it will use cosine similarity
-     * if type is COSINE and LSH hash if type is HASH
+     * will be obtain from the translation matrix if not negated (or from
+     * our similarity cache, if one was set), and if
+     * the query object is negated, it will read the similarity from the
+     * dissimilarities of the translation matrix if it has any, otherwise
+     * it will use cosine similarity if type is COSINE, LSH hash if type is HASH and estimated
+     * cosine similarity from bit signatures if type is HAMMING
      * @param term the word we will compare our query term to
      * @param queryObject contains the term form a query
      * @param type the type of calculation we will be doing
@@ -315,14 +499,35 @@ public class StructuredDocumentScorer {
     public Double get_object_similarity(String term, QueryObject queryObject,
                                         CalculationType type) {
 
-        Double result = 0.0;
+        return get_object_similarity(embeddingSpace.get_dictionary().get_id(term),
+                queryObject, type);
+    }
+
+    /**
+     * Like get_object_similarity(String, QueryObject, CalculationType),
+     * for the word of the given id in the dictionary of our embedding space
+     * @param term id of the word we will compare our query term to
+     * @param queryObject contains the term form a query
+     * @param type the type of calculation we will be doing
+     * @return the similarity between the queryObject and the term
+     */
+    public double get_object_similarity(int term, QueryObject queryObject,
+                                        CalculationType type) {
+
+        double result = 0.0;
 
         // first check if we have vector for term in our embeddingSpace
-        if(embeddingSpace.get_vector(term) == null) {
+        if(!embeddingSpace.has_vector(term)) {
 
             return 0.0;
         }
 
+        if(type == CalculationType.HASH || type == CalculationType.HASH_ALL) {
+
+            // hash every word of our space once, not on every comparison
+            embeddingSpace.build_hash_table(lsh);
+        }
+
         WordVector termVector = embeddingSpace.get_vector(term);
         WordVector queryVector =  queryObject.get_vector();
         // if type is HASH_ALL, calculate with hash
@@ -335,7 +540,13 @@ public class StructuredDocumentScorer {
             // otherwise, get similarity from translation matrix
             if(queryObject.isNegated()) {
 
-                if(type == CalculationType.HASH) {
+                if(translations != null && translations.get_dissimilarities() != null) {
+
+                    // the similarity with the inverse of the query term
+                    // was recorded when our matrix was generated
+                    result = translations.get_dissimilarity(
+                            queryObject.get_id(embeddingSpace.get_dictionary()), term);
+                } else if(type == CalculationType.HASH) {
 
                     // use locality sensitive hash
                     result = WordVector.compare_hash(termVector, queryVector, lsh);
@@ -343,11 +554,26 @@ public class StructuredDocumentScorer {
 
                     // use cosine similarity
                     result = WordVector.cosine_similarity(termVector, queryVector, tolerance);
+                } else if(type == CalculationType.HAMMING) {
+
+                    // estimate cosine similarity from bit signatures
+                    result = WordVector.hamming_similarity(termVector, queryVector,
+                            embeddingSpace.get_signature_table(), tolerance);
+                }
+            } else if(similarityCache != null) {
+
+                // not negated, without a matrix: compute the
+                // similarity, unless it is cached
+                int queryTerm = queryObject.get_id(embeddingSpace.get_dictionary());
+                if(embeddingSpace.has_vector(queryTerm)) {
+
+                    result = similarityCache.get_similarity(queryTerm, term);
                 }
             } else {
 
                 // not negated, get similarity from matrix
-                result = translations.get_similarity(queryObject.getWord(), term);
+                result = translations.get_similarity(
+                        queryObject.get_id(embeddingSpace.get_dictionary()), term);
             }
         }
 
@@ -360,6 +586,8 @@ public class StructuredDocumentScorer {
      * is HASH, similarity will be calculated with locality
      * sensitive hash. If given Calculation type is COSINE,
      * similarity will be calculated with cosine similarity.
+     * If given Calculation type is HAMMING, similarity will be
+     * estimated from the bit signatures of both vectors.
      * @param fieldTerm word from a document
      * @param phrase phrase from a query
      * @param type the type of calculation we will perform
@@ -368,17 +596,38 @@ public class StructuredDocumentScorer {
     public Double get_phrase_similarity(String fieldTerm, Phrase phrase,
                                         CalculationType type) {
 
-        Double result = 0.0;
+        return get_phrase_similarity(embeddingSpace.get_dictionary().get_id(fieldTerm),
+                phrase, type);
+    }
+
+    /**
+     * Like get_phrase_similarity(String, Phrase, CalculationType), for
+     * the word of the given id in the dictionary of our embedding space
+     * @param fieldTerm id of a word from a document
+     * @param phrase phrase from a query
+     * @param type the type of calculation we will perform
+     * @return the similarity of the phrase and the fieldTerm
+     */
+    public double get_phrase_similarity(int fieldTerm, Phrase phrase,
+                                        CalculationType type) {
+
+        double result = 0.0;
 
         // get vector representation of phrase
         WordVector phraseVector = phrase.get_vector();
 
         // first check if we have vector for term in our embeddingSpace
-        if(embeddingSpace.get_vector(fieldTerm) == null) {
+        if(!embeddingSpace.has_vector(fieldTerm)) {
 
             return 0.0;
         }
 
+        if(type == CalculationType.HASH) {
+
+            // hash every word of our space once, not on every comparison
+            embeddingSpace.build_hash_table(lsh);
+        }
+
         // get vector representation of fieldTerm
         WordVector termVector = embeddingSpace.get_vector(fieldTerm);
 
@@ -390,6 +639,11 @@ public class StructuredDocumentScorer {
 
             // compare with cosine similarity
             result = WordVector.cosine_similarity(phraseVector, termVector, tolerance);
+        } else if (type == CalculationType.HAMMING) {
+
+            // estimate cosine similarity from bit signatures
+            result = WordVector.hamming_similarity(phraseVector, termVector,
+                    embeddingSpace.get_signature_table(), tolerance);
         }
 
         return result;
@@ -399,16 +653,75 @@ public class StructuredDocumentScorer {
     public void set_lsh(LSHSuperBit lsh) {
 
         this.lsh = lsh;
+        Arrays.fill(preparedTables, null);
     }
 
-    public void set_translations(TranslationMatrix translations) {
+    public void set_translations(SimilarityMatrix translations) {
 
         this.translations = translations;
+        Arrays.fill(preparedTables, null);
+        share_dictionary();
+    }
+
+    /**
+     * Scores without a translation matrix: similarities of query terms
+     * that are not negated are computed from our embedding space on
+     * demand, and kept in the given cache. The cache may be shared by
+     * scorers over the same space.
+     * @param similarityCache the cache we will use, or null to read
+     *                        similarities from our translation matrix
+     */
+    public void set_similarity_cache(SimilarityCache similarityCache) {
+
+        this.similarityCache = similarityCache;
+        Arrays.fill(preparedTables, null);
+    }
+
+    public SimilarityCache get_similarity_cache() {
+
+        return this.similarityCache;
     }
 
     public void set_embeddings(EmbeddingSpace embeddingSpace) {
 
         this.embeddingSpace = embeddingSpace;
+        Arrays.fill(preparedTables, null);
+        share_dictionary();
+    }
+
+    /**
+     * Has our translation matrix look words up by their id in the
+     * dictionary of our embedding space, as our documents and queries do
+     */
+    private void share_dictionary() {
+
+        if(translations != null && embeddingSpace != null) {
+
+            translations.set_dictionary(embeddingSpace.get_dictionary());
+
+            if(translations.get_dissimilarities() != null) {
+
+                translations.get_dissimilarities().set_dictionary(embeddingSpace.get_dictionary());
+            }
+        }
+    }
+
+    /**
+     * @param terms some words
+     * @return the id of each of the given words in the dictionary
+     * of our embedding space, -1 for words without one
+     */
+    public int[] term_ids(List<String> terms) {
+
+        TermDictionary dictionary = embeddingSpace.get_dictionary();
+
+        int[] result = new int[terms.size()];
+        for(int index = 0; index < result.length; index++) {
+
+            result[index] = dictionary.get_id(terms.get(index));
+        }
+
+        return result;
     }
 
     public void set_mu(Double mu) {
@@ -419,6 +732,7 @@ public class StructuredDocumentScorer {
     public void set_index_reader(IndexReader indexReader) {
 
         this.indexReader = indexReader;
+        Arrays.fill(preparedTables, null);
     }
 
     /**
@@ -442,6 +756,16 @@ public class StructuredDocumentScorer {
         return currentStats.get_count(word).doubleValue() / currentStats.get_word_count().doubleValue();
     }
 
+    /**
+     * @param word id of some word in the dictionary of our embedding space
+     * @return the density of the word of the given id in the current
+     * document (that is p(word | document))
+     */
+    public double get_word_document_density(int word) {
+
+        return currentStats.get_count(word) / currentStats.get_word_count().doubleValue();
+    }
+
     /**
      * Sets the current document we will use to score queries against
      * @param document
@@ -453,7 +777,7 @@ public class StructuredDocumentScorer {
 
 
         currentDoc = document;
-        currentStats = new DocumentStatistic(document, fieldName);
+        currentStats = new DocumentStatistic(document, fieldName, embeddingSpace.get_dictionary());
         currentFieldName = fieldName;
         currentStats.process_counts(analyzer);
     }
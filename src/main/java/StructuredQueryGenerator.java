@@ -260,6 +260,8 @@ public class StructuredQueryGenerator extends QueryGenerator {
 
             newTerm = basic.get(termIndex);
             newVector = embeddingSpace.get_vector(newTerm.getWord());
+            newTerm.set_id(embeddingSpace.get_dictionary().add(newTerm.getWord()),
+                    embeddingSpace.get_dictionary());
 
             // apply negation if needed
             if(newTerm.isNegated()) {
@@ -17,7 +17,7 @@ import java.util.SortedMap;
 
 public class StructuredReranker {
 
-    TranslationMatrix translations;
+    SimilarityMatrix translations;
     EmbeddingSpace space;
     LSHSuperBit lsh;
     StructuredDocumentScorer scorer;
@@ -31,7 +31,7 @@ public class StructuredReranker {
 
 
     public StructuredReranker(IndexReader indexReader,
-                              TranslationMatrix translations,
+                              SimilarityMatrix translations,
                               EmbeddingSpace space,
                               LSHSuperBit lsh,
                               Analyzer analyzer,
@@ -299,7 +299,7 @@ public class StructuredReranker {
      * @throws ParseException
      */
     public static void generate_scores(IndexReader indexReader,
-                                       TranslationMatrix translationMatrix,
+                                       SimilarityMatrix translationMatrix,
                                        LSHSuperBit lsh,
                                        SortedMap<Integer, Map<String, String>> topicReaderMap,
                                        SortedMap<Integer, Map<String, String>> structuredTopicReaderMap,
@@ -332,6 +332,21 @@ public class StructuredReranker {
         PrintWriter languageWriter = new PrintWriter(languageDiriletOutputPath, "UTF-8");
         PrintWriter structuredWriter = new PrintWriter(structuredDiriletOutputPath, "UTF-8");
 
+        // construct document scorer, once for every document, so the
+        // similarities of a topic's queries are shared by its documents
+        StructuredDocumentScorer scorer = new StructuredDocumentScorer(indexReader,
+                translationMatrix, space, lsh, mu, alpha, beta, get_corpus_size(indexReader), tolerance);
+
+        // construct structured query generator
+        StructuredQueryGenerator generator = new StructuredQueryGenerator(space);
+
+        // the queries of the topic of the previous line: lines of
+        // a topic come together, so its queries are built once
+        Integer queryTopic = null;
+        StructuredQuery query = null;
+        StructuredQuery structuredQuery = null;
+        Boolean wordNotFound = false;
+
         while((line = br.readLine()) != null) {
 
             // split line by space
@@ -351,21 +366,23 @@ public class StructuredReranker {
 
             String structuredQueryText = structuredTopicReaderMap.get(topicNumber).get("title");
 
-            // construct structured query from given text
-            StructuredQueryGenerator generator = new StructuredQueryGenerator(space);
+            if(!topicNumber.equals(queryTopic)) {
 
-            // if null pointer exception occurs, we must use old scores
-            StructuredQuery query = null;
-            StructuredQuery structuredQuery = null;
+                // construct structured query from given text
+                // if null pointer exception occurs, we must use old scores
+                queryTopic = topicNumber;
+                query = null;
+                structuredQuery = null;
 
-            Boolean wordNotFound = false;
-            try {
-                query = generator.buildQuery(fieldName, analyzer, queryText);
+                wordNotFound = false;
+                try {
+                    query = generator.buildQuery(fieldName, analyzer, queryText);
 
-                structuredQuery = generator.buildQuery(fieldName, analyzer, structuredQueryText);
-            } catch (NullPointerException e) {
+                    structuredQuery = generator.buildQuery(fieldName, analyzer, structuredQueryText);
+                } catch (NullPointerException e) {
 
-                wordNotFound = true;
+                    wordNotFound = true;
+                }
             }
 
             String[] basicSplited = splited.clone();
@@ -377,9 +394,6 @@ public class StructuredReranker {
             // operations on it that involve a word vector in any way
             // since we have no vector for it
             if(!wordNotFound) {
-                // construct document scorer
-                StructuredDocumentScorer scorer = new StructuredDocumentScorer(indexReader,
-                        translationMatrix, space, lsh, mu, alpha, beta, get_corpus_size(indexReader), tolerance);
 
                 // set the current document
                 scorer.set_document(indexReader.document(indexDocID), fieldName, analyzer);
@@ -499,7 +513,7 @@ public class StructuredReranker {
 
         EmbeddingSpace space = new EmbeddingSpace(args[2]);
 
-        TranslationMatrix testMatrix = TranslationMatrix.read(args[0]);
+        SimilarityMatrix testMatrix = SimilarityMatrix.read(args[0]);
 
         IndexReader anseriniReader = IndexReaderUtils.getReader(args[1]);
 
@@ -0,0 +1,266 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Assigns a dense int id to each word, once, so that everything
+ * downstream (vectors, translations, document counts, query terms) can
+ * be keyed by an int rather than by a String. Ids are given in order
+ * from zero: a dictionary built over the words of a VectorSlab gives
+ * each word its row as id, and words added later (for example words of
+ * a document that have no vector) follow the rows of the slab.
+ *
+ * Words are found with open addressing over a table of ids, probing
+ * linearly from the word's hash. The hash of each word is kept next to
+ * its id, so a probe only compares Strings when the hashes match.
+ *
+ * Words are added under a lock, and looked up without one while other
+ * threads add: readers go through a snapshot of the arrays and size,
+ * which an add publishes (through a volatile field) once the new word
+ * is in place, so a reader sees every word added before its snapshot.
+ * Arrays are only replaced by grown copies, and slots of the table are
+ * only ever filled, so a slot a reader finds holding an id past its
+ * snapshot was empty when the snapshot was taken, and ends the probe.
+ */
+public class TermDictionary implements Serializable {
+
+    // the arrays and size readers use, replaced on every add
+    transient volatile Snapshot snapshot;
+
+    public TermDictionary() {
+
+        this(new String[0]);
+    }
+
+    /**
+     * Creates a dictionary giving each word of `words` its index as id,
+     * so ids stay the rows of a slab even if a word occurs twice: the
+     * later index is then the id of the word, as it was in the HashMap
+     * this dictionary replaced, and get_term still gives the word of
+     * the earlier one
+     * @param words some words, usually distinct
+     */
+    public TermDictionary(String[] words) {
+
+        init(words);
+    }
+
+    private void init(String[] words) {
+
+        String[] terms = new String[Math.max(16, words.length)];
+        snapshot = new Snapshot(terms, new int[terms.length], empty_table(terms.length), 0);
+
+        for(String word : words) {
+
+            append(word);
+        }
+    }
+
+    /**
+     * Gives `term` the next id, even if it has one already, in which
+     * case it is looked up by the new id from now on
+     */
+    private synchronized void append(String term) {
+
+        Snapshot current = snapshot;
+        int hash = mix(term.hashCode());
+        int previous = find(current, hash, term);
+
+        if(previous < 0) {
+
+            add(term);
+            return;
+        }
+
+        int id = current.size;
+        String[] terms = current.terms;
+        int[] hashes = current.hashes;
+
+        if(id == terms.length) {
+
+            terms = Arrays.copyOf(terms, id * 2);
+            hashes = Arrays.copyOf(hashes, id * 2);
+        }
+
+        terms[id] = term;
+        hashes[id] = hash;
+
+        // the table holds as many ids as before, so it need not grow:
+        // the slot of the previous id is given to the new one
+        int[] table = current.table.clone();
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while(table[slot] != previous) {
+
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id;
+
+        snapshot = new Snapshot(terms, hashes, table, id + 1);
+    }
+
+    /**
+     * @param term some word
+     * @return the id of the given word, or -1 if it has none
+     */
+    public int get_id(String term) {
+
+        return find(snapshot, mix(term.hashCode()), term);
+    }
+
+    /**
+     * @return the id of `term` among the words of `snapshot`, or -1
+     */
+    private static int find(Snapshot snapshot, int hash, String term) {
+
+        int[] table = snapshot.table;
+        int mask = table.length - 1;
+
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+
+            int id = table[slot];
+
+            if(id < 0 || id >= snapshot.size) {
+
+                // empty, or filled since the snapshot was taken
+                return -1;
+            }
+
+            if(snapshot.hashes[id] == hash && snapshot.terms[id].equals(term)) {
+
+                return id;
+            }
+        }
+    }
+
+    /**
+     * @param term some word
+     * @return the id of the given word, which is given the next
+     * id if it does not have one yet
+     */
+    public synchronized int add(String term) {
+
+        Snapshot current = snapshot;
+        int hash = mix(term.hashCode());
+        int id = find(current, hash, term);
+
+        if(id >= 0) {
+
+            return id;
+        }
+
+        id = current.size;
+        String[] terms = current.terms;
+        int[] hashes = current.hashes;
+        int[] table = current.table;
+
+        if(id == terms.length) {
+
+            terms = Arrays.copyOf(terms, id * 2);
+            hashes = Arrays.copyOf(hashes, id * 2);
+        }
+
+        terms[id] = term;
+        hashes[id] = hash;
+
+        // keep the table at most half full
+        if(2 * (id + 1) > table.length) {
+
+            int[] grown = empty_table(2 * table.length);
+            for(int other = 0; other < id; other++) {
+
+                insert(grown, hashes, other);
+            }
+            table = grown;
+        }
+        insert(table, hashes, id);
+
+        snapshot = new Snapshot(terms, hashes, table, id + 1);
+        return id;
+    }
+
+    /**
+     * @param id some id of this dictionary
+     * @return the word of the given id
+     */
+    public String get_term(int id) {
+
+        return snapshot.terms[id];
+    }
+
+    public int get_size() {
+
+        return snapshot.size;
+    }
+
+    /**
+     * Places `id` in the first empty slot of `table` from its hash
+     */
+    private static void insert(int[] table, int[] hashes, int id) {
+
+        int mask = table.length - 1;
+        int slot = hashes[id] & mask;
+
+        while(table[slot] >= 0) {
+
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot] = id;
+    }
+
+    /**
+     * @return an empty table able to hold `capacity` words
+     * while staying at most half full
+     */
+    private static int[] empty_table(int capacity) {
+
+        int length = Integer.highestOneBit(Math.max(16, capacity) - 1) << 2;
+        int[] table = new int[length];
+        Arrays.fill(table, -1);
+        return table;
+    }
+
+    /**
+     * Spreads the bits of a String hash, whose low bits alone
+     * are poor for words sharing a suffix
+     */
+    private static int mix(int hash) {
+
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+
+        Snapshot snapshot = this.snapshot;
+
+        out.defaultWriteObject();
+        out.writeObject(Arrays.copyOf(snapshot.terms, snapshot.size));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+        in.defaultReadObject();
+        init((String[]) in.readObject());
+    }
+
+    /**
+     * The words of a dictionary as one reader sees them: the word
+     * and hash of each id below `size`, and the table of ids
+     */
+    static class Snapshot {
+
+        final String[] terms;
+        final int[] hashes;
+        final int[] table;
+        final int size;
+
+        Snapshot(String[] terms, int[] hashes, int[] table, int size) {
+
+            this.terms = terms;
+            this.hashes = hashes;
+            this.table = table;
+            this.size = size;
+        }
+    }
+}
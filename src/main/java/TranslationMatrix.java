@@ -1,22 +1,32 @@
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public class TranslationMatrix implements Serializable {
+/**
+ * Similarities of pairs of words held in a map of maps, which
+ * similarities are put into one pair at a time
+ */
+public class TranslationMatrix extends SimilarityMatrix {
+
+    // matrices serialized before this class changed must stay readable
+    private static final long serialVersionUID = -9042323874669002984L;
 
     // HashMap of HashMaps we will maintain to store similarity of vectors
     // in its normal distribution
     HashMap<String, HashMap<String, Double>> translations;
 
-    // HashMap of TreeMaps we will maintain to store similarity of vectors
-    // in an inverted distribution... this will be used for getting,
-    // for example, the 10 most similar words to some word
-    HashMap<String, TreeMap<Double, String>> inverseTranslations;
+    // rows of `translations` keyed by id, built on first use, each one
+    // immutable. Readers read this field once: it is replaced, never
+    // changed in place, when it grows or our rows change
+    transient volatile AtomicReferenceArray<SparseRow> idRows;
 
     public TranslationMatrix() {
 
         translations = new HashMap<>();
-        inverseTranslations = new HashMap<>();
     }
 
     /**
@@ -25,6 +35,7 @@ public class TranslationMatrix implements Serializable {
      * @return returns the similarity value of these words
      * if it exists, otherwise, returns zero.
      */
+    @Override
     public Double get_similarity(String X, String Y) {
 
         if(translations.containsKey(X)) {
@@ -43,10 +54,173 @@ public class TranslationMatrix implements Serializable {
         }
     }
 
+    /**
+     * @param X id of the first word
+     * @param Y id of the second word
+     * @return the similarity of the words of the given ids in the
+     * dictionary given to set_dictionary if it exists, otherwise
+     * returns zero. No String is hashed once the row of X is built.
+     */
+    @Override
+    public double get_similarity(int X, int Y) {
+
+        if(X < 0 || Y < 0) {
+
+            return 0.0;
+        }
+
+        return id_row(X).get(Y);
+    }
+
+    /**
+     * @param X id of some word, in the dictionary given to set_dictionary
+     * @return the entries of the row of the word X, by the id of their
+     * word, so a row can be walked rather than probed word by word
+     */
+    @Override
+    public SparseRow get_sparse_row(int X) {
+
+        if(X < 0) {
+
+            return SparseRow.EMPTY;
+        }
+
+        return id_row(X);
+    }
+
+    /**
+     * @return the row of the word of id X, keyed by id, built if needed
+     */
+    private SparseRow id_row(int X) {
+
+        AtomicReferenceArray<SparseRow> rows = idRows;
+        SparseRow row = rows != null && X < rows.length() ? rows.get(X) : null;
+
+        return row != null ? row : build_row(X);
+    }
+
+    /**
+     * Sets the dictionary that get_similarity(int, int) looks our words
+     * up by id in, which gives an id to each of our words that has none
+     * @param dictionary the dictionary of our embedding space
+     */
+    @Override
+    public synchronized void set_dictionary(TermDictionary dictionary) {
+
+        if(this.dictionary == dictionary) {
+
+            return;
+        }
+
+        this.dictionary = dictionary;
+        idRows = null;
+    }
+
+    /**
+     * Copies the row of the word of id X into idRows
+     * @return the row
+     */
+    private synchronized SparseRow build_row(int X) {
+
+        if(dictionary == null) {
+
+            throw new IllegalStateException("No dictionary was given to look words up by id");
+        }
+
+        AtomicReferenceArray<SparseRow> rows = idRows;
+        if(rows == null || X >= rows.length()) {
+
+            // a larger copy, published once it holds every row built so far
+            AtomicReferenceArray<SparseRow> grown = new AtomicReferenceArray<>(
+                    Math.max(X + 1, dictionary.get_size()));
+            for(int index = 0; rows != null && index < rows.length(); index++) {
+
+                grown.set(index, rows.get(index));
+            }
+            rows = grown;
+            idRows = grown;
+        }
+
+        if(rows.get(X) != null) {
+
+            return rows.get(X);
+        }
+
+        HashMap<String, Double> distribution = translations.get(dictionary.get_term(X));
+        int[] columns = new int[distribution == null ? 0 : distribution.size()];
+        double[] values = new double[columns.length];
+
+        if(distribution != null) {
+
+            // sort the entries of the row by id
+            long[] order = new long[columns.length];
+            Double[] similarities = new Double[columns.length];
+            int index = 0;
+            for(Map.Entry<String, Double> entry : distribution.entrySet()) {
+
+                similarities[index] = entry.getValue();
+                order[index] = ((long) dictionary.add(entry.getKey()) << 32) | index;
+                index++;
+            }
+            Arrays.sort(order);
+
+            for(index = 0; index < order.length; index++) {
+
+                columns[index] = (int) (order[index] >>> 32);
+                values[index] = similarities[(int) order[index]];
+            }
+        }
+
+        SparseRow row = new SparseRow(columns, values);
+        rows.set(X, row);
+        return row;
+    }
+
+    /**
+     * @param term some word
+     * @param k the number of neighbours we want
+     * @return the (at most) `k` words with the highest similarity to
+     * `term` in this matrix, most similar first. Words tied with the
+     * `k`th are kept in no particular order, as long as they fit.
+     * A neighbour's row is -1, as this matrix has no rows.
+     */
+    @Override
+    public List<Neighbor> top_neighbors(String term, int k) {
+
+        ArrayList<Neighbor> result = new ArrayList<>();
+        HashMap<String, Double> distribution = translations.get(term);
+
+        if(distribution == null || k <= 0) {
+
+            return result;
+        }
+
+        // select the `k` highest similarities of the row, by index
+        String[] others = new String[distribution.size()];
+        SimilarityHeap heap = new SimilarityHeap(k);
+        int index = 0;
+        for(Map.Entry<String, Double> entry : distribution.entrySet()) {
+
+            others[index] = entry.getKey();
+            heap.offer(index, entry.getValue(), k);
+            index++;
+        }
+
+        int[] indexes = new int[heap.size()];
+        double[] similarities = new double[indexes.length];
+        heap.drain_descending(indexes, similarities);
+
+        for(index = 0; index < indexes.length; index++) {
+
+            result.add(new Neighbor(others[indexes[index]], -1, similarities[index]));
+        }
+
+        return result;
+    }
+
     /**
      * Initializes translation entry for a given string, that is
-     * creates the initial HashMap / TreeMap inside each distribution
-     * of translation probabilities.
+     * creates the initial HashMap of translation probabilities.
      * @param X
      */
     public void init_entry(String X) {
@@ -58,17 +232,12 @@ public class TranslationMatrix implements Serializable {
             // make new HashMap for this string
             translations.put(X, new HashMap<String, Double>());
         }
-
-        // do same for inverse distributions
-        if(!inverseTranslations.containsKey(X)) {
-
-            inverseTranslations.put(X, new TreeMap<Double, String>());
-        }
     }
 
     /**
      * Adds the similarity for these two words
-     * to this translation matrix
+     * to this translation matrix. This is not thread safe... to
+     * build a matrix from many threads, see TranslationMatrixBuilder.
      * @param X our first word
      * @param Y our second word
      * @param similarity the similarity value between
@@ -76,33 +245,15 @@ public class TranslationMatrix implements Serializable {
      */
     public void put(String X, String Y, Double similarity) {
 
-        // enter into normal distribution
-
-        // get HashMaps that we will be updating
-        HashMap<String, Double> distX = translations.get(X);
-        HashMap<String, Double> distY = translations.get(Y);
-
-
-        // edit each then add back after removing old ones
-        distX.put(Y, similarity);
-        distY.put(X, similarity);
-
-        translations.remove(X);
-        translations.remove(Y);
-        translations.put(X, distX);
-        translations.put(Y, distY);
-
-        // do same for inverse distribution
-        TreeMap<Double, String> invDistX = inverseTranslations.get(X);
-        TreeMap<Double, String> invDistY = inverseTranslations.get(Y);
+        // the distributions are updated in place
+        translations.get(X).put(Y, similarity);
+        translations.get(Y).put(X, similarity);
 
-        invDistX.put(similarity, Y);
-        invDistY.put(similarity, X);
+        // rows keyed by id are rebuilt on next use
+        if(idRows != null) {
 
-        inverseTranslations.remove(X);
-        inverseTranslations.remove(Y);
-        inverseTranslations.put(X, invDistX);
-        inverseTranslations.put(Y, invDistY);
+            idRows = null;
+        }
     }
 
 
@@ -156,45 +307,14 @@ public class TranslationMatrix implements Serializable {
 
 
     /**
-     *
-     * @param filePath a file path where a serialized translation
-     *                 matrix is (hopefully) stored
-     * @return a translation matrix that was stored
-     * at `filePath`
-     */
-    public static TranslationMatrix read(String filePath) {
-
-        System.out.println("Loading matrix from file...");
-        TranslationMatrix spaceInFile = new TranslationMatrix();
-        try {
-
-            FileInputStream fis = new FileInputStream(filePath);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            spaceInFile = (TranslationMatrix) ois.readObject();
-            ois.close();
-            fis.close();
-        } catch(Exception e) {}
-
-        System.out.println("Matrix loaded.");
-        return spaceInFile;
-    }
-
-    /**
-     * Serializes this translation matrix to the
-     * given file path
+     * Writes this translation matrix to the given file
+     * path, in the MatrixFile format, and our dissimilarities
+     * (if any) next to it
      * @param filePath
+     * @throws IOException
      */
-    public void save(String filePath) {
-
-        try {
-
-            FileOutputStream fos = new FileOutputStream(filePath);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
+    public void save(String filePath) throws IOException {
 
-            oos.writeObject(this);
-            oos.flush();
-            oos.close();
-            fos.close();
-        } catch(Exception e) {}
+        save(this, filePath);
     }
 }
@@ -0,0 +1,309 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Collects the similarities of pairs of words from any number of threads,
+ * then freezes them into a CsrTranslationMatrix. Pairs go into one of
+ * several stripes, each a growable buffer with its own lock, chosen from
+ * the adding thread, so threads adding at the same time rarely wait on
+ * each other. Adding a batch of pairs takes the lock once.
+ *
+ * As with TranslationMatrix.put, each pair is recorded in both
+ * directions. A pair added more than once keeps one of its similarities.
+ */
+public class TranslationMatrixBuilder {
+
+    // the word of each row
+    String[] terms;
+
+    // the row of each word
+    TermDictionary rows;
+
+    Stripe[] stripes;
+
+    boolean frozen;
+
+    /**
+     * @param terms the words of the matrix, each of which gets a row
+     *              (in this order) even if no pair is added for it
+     */
+    public TranslationMatrixBuilder(String[] terms) {
+
+        this.terms = terms;
+        this.rows = new TermDictionary(terms);
+
+        int count = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+        stripes = new Stripe[count];
+        for(int stripe = 0; stripe < count; stripe++) {
+
+            stripes[stripe] = new Stripe();
+        }
+    }
+
+    /**
+     * Adds the similarity of the two given words
+     * @param X our first word
+     * @param Y our second word
+     * @param similarity the similarity value between these two words
+     * @throws IllegalArgumentException if either word was not given
+     * to our constructor
+     */
+    public void put(String X, String Y, double similarity) {
+
+        int row = rows.get_id(X);
+        int column = rows.get_id(Y);
+
+        if(row < 0 || column < 0) {
+
+            throw new IllegalArgumentException("No row for " + (row < 0 ? X : Y));
+        }
+
+        put(row, column, similarity);
+    }
+
+    /**
+     * Adds the similarity of the words of rows `row` and `column`
+     */
+    public void put(int row, int column, double similarity) {
+
+        Stripe stripe = stripe();
+
+        synchronized(stripe) {
+
+            check_open();
+            stripe.add(row, column, (float) similarity);
+        }
+    }
+
+    /**
+     * Adds the first `count` pairs of the given arrays
+     * @param rows row of the first word of each pair
+     * @param columns row of the second word of each pair
+     * @param similarities similarity of each pair
+     * @param count the number of pairs
+     */
+    public void put_all(int[] rows, int[] columns, double[] similarities, int count) {
+
+        Stripe stripe = stripe();
+
+        synchronized(stripe) {
+
+            check_open();
+            for(int index = 0; index < count; index++) {
+
+                stripe.add(rows[index], columns[index], (float) similarities[index]);
+            }
+        }
+    }
+
+    /**
+     * @return the stripe the current thread adds to
+     */
+    private Stripe stripe() {
+
+        long id = Thread.currentThread().getId();
+        return stripes[(int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & (stripes.length - 1)];
+    }
+
+    private void check_open() {
+
+        if(frozen) {
+
+            throw new IllegalStateException("This builder has been frozen");
+        }
+    }
+
+    /**
+     * Turns every pair added so far into an immutable matrix, whose rows
+     * are sorted on every processor. The builder cannot be used afterwards.
+     * Pairs must not be added while this runs.
+     * @return the matrix holding every pair added
+     */
+    public synchronized CsrTranslationMatrix freeze() {
+
+        check_open();
+        frozen = true;
+
+        // taking each lock once makes every pair added before visible,
+        // and every later attempt to add fail
+        for(Stripe stripe : stripes) {
+
+            synchronized(stripe) {
+
+                // the lock is all we need
+            }
+        }
+
+        int size = terms.length;
+
+        // count the entries of each row, both directions of each pair
+        long[] rowOffsets = new long[size + 1];
+        for(Stripe stripe : stripes) {
+
+            for(int index = 0; index < stripe.size; index++) {
+
+                rowOffsets[stripe.rows[index] + 1]++;
+                if(stripe.rows[index] != stripe.columns[index]) {
+
+                    rowOffsets[stripe.columns[index] + 1]++;
+                }
+            }
+        }
+
+        for(int row = 0; row < size; row++) {
+
+            rowOffsets[row + 1] += rowOffsets[row];
+        }
+
+        if(rowOffsets[size] > Integer.MAX_VALUE) {
+
+            throw new IllegalStateException("Too many entries for one matrix: " + rowOffsets[size]);
+        }
+
+        // place each entry in its row, as its column followed by
+        // the bits of its similarity, so sorting orders by column
+        long[] entries = new long[(int) rowOffsets[size]];
+        int[] next = new int[size];
+        for(int row = 0; row < size; row++) {
+
+            next[row] = (int) rowOffsets[row];
+        }
+
+        for(Stripe stripe : stripes) {
+
+            for(int index = 0; index < stripe.size; index++) {
+
+                int row = stripe.rows[index];
+                int column = stripe.columns[index];
+                long bits = Float.floatToRawIntBits(stripe.similarities[index]) & 0xFFFFFFFFL;
+
+                entries[next[row]++] = ((long) column << 32) | bits;
+                if(row != column) {
+
+                    entries[next[column]++] = ((long) row << 32) | bits;
+                }
+            }
+
+            // the pairs of the stripe are no longer needed
+            stripe.clear();
+        }
+        next = null;
+
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+
+            pool.invoke(new SortTask(entries, rowOffsets, 0, size));
+        } finally {
+
+            pool.shutdown();
+        }
+
+        // drop pairs added more than once, then split the entries
+        int[] columns = new int[entries.length];
+        float[] values = new float[entries.length];
+        int count = 0;
+        for(int row = 0; row < size; row++) {
+
+            int start = (int) rowOffsets[row];
+            int end = (int) rowOffsets[row + 1];
+            rowOffsets[row] = count;
+
+            for(int entry = start; entry < end; entry++) {
+
+                int column = (int) (entries[entry] >>> 32);
+                if(entry > start && column == columns[count - 1]) {
+
+                    continue;
+                }
+
+                columns[count] = column;
+                values[count] = Float.intBitsToFloat((int) entries[entry]);
+                count++;
+            }
+        }
+        rowOffsets[size] = count;
+
+        if(count < columns.length) {
+
+            columns = Arrays.copyOf(columns, count);
+            values = Arrays.copyOf(values, count);
+        }
+
+        return new CsrTranslationMatrix(terms, rowOffsets,
+                IntBuffer.wrap(columns), FloatBuffer.wrap(values));
+    }
+
+    /**
+     * Sorts the entries of a range of rows, splitting it
+     * while it holds many entries
+     */
+    static class SortTask extends RecursiveAction {
+
+        long[] entries;
+        long[] rowOffsets;
+        int rowStart;
+        int rowEnd;
+
+        SortTask(long[] entries, long[] rowOffsets, int rowStart, int rowEnd) {
+
+            this.entries = entries;
+            this.rowOffsets = rowOffsets;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+
+            if(rowEnd - rowStart > 1 && rowOffsets[rowEnd] - rowOffsets[rowStart] > (1 << 16)) {
+
+                int middle = (rowStart + rowEnd) >>> 1;
+                invokeAll(new SortTask(entries, rowOffsets, rowStart, middle),
+                        new SortTask(entries, rowOffsets, middle, rowEnd));
+                return;
+            }
+
+            for(int row = rowStart; row < rowEnd; row++) {
+
+                Arrays.sort(entries, (int) rowOffsets[row], (int) rowOffsets[row + 1]);
+            }
+        }
+    }
+
+    /**
+     * Growable list of (row, column, similarity) pairs
+     */
+    static class Stripe {
+
+        int[] rows = new int[256];
+        int[] columns = new int[256];
+        float[] similarities = new float[256];
+        int size;
+
+        void add(int row, int column, float similarity) {
+
+            if(size == rows.length) {
+
+                rows = Arrays.copyOf(rows, size * 2);
+                columns = Arrays.copyOf(columns, size * 2);
+                similarities = Arrays.copyOf(similarities, size * 2);
+            }
+
+            rows[size] = row;
+            columns[size] = column;
+            similarities[size] = similarity;
+            size++;
+        }
+
+        void clear() {
+
+            rows = null;
+            columns = null;
+            similarities = null;
+            size = 0;
+        }
+    }
+}
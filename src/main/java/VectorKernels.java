@@ -0,0 +1,246 @@
+import java.nio.FloatBuffer;
+
+/**
+ * The dot-product kernel every similarity calculation goes through.
+ * When the JDK Vector API is available (Java 16+, run with
+ * `--add-modules jdk.incubator.vector`) vectors are multiplied with
+ * SIMD instructions by SimdDotKernel (vectors of direct buffers, such
+ * as mapped embedding files, are first copied to a scratch array),
+ * otherwise a scalar loop is used.
+ * The SIMD path accumulates in float lanes, so its results can differ
+ * from the scalar path in the last bits of a float.
+ * Setting the system property `embeddings.simd` to false forces the
+ * scalar path.
+ */
+public class VectorKernels {
+
+    static final boolean SIMD = simd_available();
+
+    private static boolean simd_available() {
+
+        if(!Boolean.parseBoolean(System.getProperty("embeddings.simd", "true"))) {
+
+            return false;
+        }
+
+        try {
+
+            return SimdDotKernel.available();
+        } catch(Throwable e) {
+
+            // running on Java 8, or without the incubator module
+            return false;
+        }
+    }
+
+    /**
+     * @return true if dot products are computed with SIMD instructions
+     */
+    public static boolean is_simd() {
+
+        return SIMD;
+    }
+
+    /**
+     *
+     * @param data1 buffer holding the first vector
+     * @param offset1 position of the first vector in `data1`
+     * @param data2 buffer holding the second vector
+     * @param offset2 position of the second vector in `data2`
+     * @param dimensions the number of components to multiply
+     * @return the dot product of the two vectors
+     */
+    public static double dot(FloatBuffer data1, int offset1,
+                             FloatBuffer data2, int offset2,
+                             int dimensions) {
+
+        if(data1.hasArray() && data2.hasArray()) {
+
+            // read straight from the backing arrays
+            return dot(data1.array(), data1.arrayOffset() + offset1,
+                    data2.array(), data2.arrayOffset() + offset2, dimensions);
+        }
+
+        if(SIMD) {
+
+            return SimdDotKernel.dot(data1, offset1, data2, offset2, dimensions);
+        }
+
+        return scalar_dot(data1, offset1, data2, offset2, dimensions);
+    }
+
+    /**
+     * Scalar dot product of two vectors read from buffers, summed
+     * as in scalar_dot, so mapped and heap vectors agree
+     */
+    static double scalar_dot(FloatBuffer data1, int offset1,
+                             FloatBuffer data2, int offset2,
+                             int dimensions) {
+
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+
+        int dimension = 0;
+        int bound = dimensions & ~3;
+        for(; dimension < bound; dimension += 4) {
+
+            sum0 += (double) data1.get(offset1 + dimension) * data2.get(offset2 + dimension);
+            sum1 += (double) data1.get(offset1 + dimension + 1) * data2.get(offset2 + dimension + 1);
+            sum2 += (double) data1.get(offset1 + dimension + 2) * data2.get(offset2 + dimension + 2);
+            sum3 += (double) data1.get(offset1 + dimension + 3) * data2.get(offset2 + dimension + 3);
+        }
+
+        for(; dimension < dimensions; dimension++) {
+
+            sum0 += (double) data1.get(offset1 + dimension) * data2.get(offset2 + dimension);
+        }
+
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     *
+     * @param contents1 array holding the first vector
+     * @param offset1 position of the first vector in `contents1`
+     * @param contents2 array holding the second vector
+     * @param offset2 position of the second vector in `contents2`
+     * @param dimensions the number of components to multiply
+     * @return the dot product of the two vectors
+     */
+    public static double dot(float[] contents1, int offset1,
+                             float[] contents2, int offset2,
+                             int dimensions) {
+
+        if(SIMD) {
+
+            return SimdDotKernel.dot(contents1, offset1, contents2, offset2, dimensions);
+        }
+
+        return scalar_dot(contents1, offset1, contents2, offset2, dimensions);
+    }
+
+    /**
+     * Dot products of one vector with `count` vectors stored one after
+     * the other, each exactly as `dot` gives it. Four vectors are
+     * multiplied at a time, sharing each read of the first vector.
+     * @param contents1 array holding the first vector
+     * @param offset1 position of the first vector in `contents1`
+     * @param contents2 array holding the other vectors
+     * @param offset2 position of the first of the other vectors in `contents2`
+     * @param count the number of other vectors
+     * @param dimensions the number of components to multiply
+     * @param result receives the dot product with each of the other vectors
+     */
+    public static void dot_rows(float[] contents1, int offset1,
+                                float[] contents2, int offset2,
+                                int count, int dimensions, double[] result) {
+
+        if(SIMD) {
+
+            SimdDotKernel.dot_rows(contents1, offset1, contents2, offset2, count, dimensions, result);
+            return;
+        }
+
+        scalar_dot_rows(contents1, offset1, contents2, offset2, count, dimensions, result);
+    }
+
+    /**
+     * Scalar dot_rows, each vector summed as in scalar_dot
+     */
+    static void scalar_dot_rows(float[] contents1, int offset1,
+                                float[] contents2, int offset2,
+                                int count, int dimensions, double[] result) {
+
+        int bound = dimensions & ~3;
+        int vector = 0;
+
+        for(; vector + 3 < count; vector += 4) {
+
+            int offsetA = offset2 + vector * dimensions;
+            int offsetB = offsetA + dimensions;
+            int offsetC = offsetB + dimensions;
+            int offsetD = offsetC + dimensions;
+
+            double a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+            double b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+            double c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+            double d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+
+            int dimension = 0;
+            for(; dimension < bound; dimension += 4) {
+
+                double x0 = contents1[offset1 + dimension];
+                double x1 = contents1[offset1 + dimension + 1];
+                double x2 = contents1[offset1 + dimension + 2];
+                double x3 = contents1[offset1 + dimension + 3];
+
+                a0 += x0 * contents2[offsetA + dimension];
+                a1 += x1 * contents2[offsetA + dimension + 1];
+                a2 += x2 * contents2[offsetA + dimension + 2];
+                a3 += x3 * contents2[offsetA + dimension + 3];
+
+                b0 += x0 * contents2[offsetB + dimension];
+                b1 += x1 * contents2[offsetB + dimension + 1];
+                b2 += x2 * contents2[offsetB + dimension + 2];
+                b3 += x3 * contents2[offsetB + dimension + 3];
+
+                c0 += x0 * contents2[offsetC + dimension];
+                c1 += x1 * contents2[offsetC + dimension + 1];
+                c2 += x2 * contents2[offsetC + dimension + 2];
+                c3 += x3 * contents2[offsetC + dimension + 3];
+
+                d0 += x0 * contents2[offsetD + dimension];
+                d1 += x1 * contents2[offsetD + dimension + 1];
+                d2 += x2 * contents2[offsetD + dimension + 2];
+                d3 += x3 * contents2[offsetD + dimension + 3];
+            }
+
+            for(; dimension < dimensions; dimension++) {
+
+                double x = contents1[offset1 + dimension];
+                a0 += x * contents2[offsetA + dimension];
+                b0 += x * contents2[offsetB + dimension];
+                c0 += x * contents2[offsetC + dimension];
+                d0 += x * contents2[offsetD + dimension];
+            }
+
+            result[vector] = (a0 + a1) + (a2 + a3);
+            result[vector + 1] = (b0 + b1) + (b2 + b3);
+            result[vector + 2] = (c0 + c1) + (c2 + c3);
+            result[vector + 3] = (d0 + d1) + (d2 + d3);
+        }
+
+        for(; vector < count; vector++) {
+
+            result[vector] = scalar_dot(contents1, offset1,
+                    contents2, offset2 + vector * dimensions, dimensions);
+        }
+    }
+
+    /**
+     * Scalar dot product, with four independent sums so that
+     * consecutive multiply-adds do not wait on each other
+     */
+    static double scalar_dot(float[] contents1, int offset1,
+                             float[] contents2, int offset2,
+                             int dimensions) {
+
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+
+        int dimension = 0;
+        int bound = dimensions & ~3;
+        for(; dimension < bound; dimension += 4) {
+
+            sum0 += (double) contents1[offset1 + dimension] * contents2[offset2 + dimension];
+            sum1 += (double) contents1[offset1 + dimension + 1] * contents2[offset2 + dimension + 1];
+            sum2 += (double) contents1[offset1 + dimension + 2] * contents2[offset2 + dimension + 2];
+            sum3 += (double) contents1[offset1 + dimension + 3] * contents2[offset2 + dimension + 3];
+        }
+
+        for(; dimension < dimensions; dimension++) {
+
+            sum0 += (double) contents1[offset1 + dimension] * contents2[offset2 + dimension];
+        }
+
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * Contiguous storage for the vectors of an EmbeddingSpace.
+ * Every vector is kept in one flat buffer of primitive floats,
+ * row after row, with `dimensions` floats per row. Words are
+ * mapped to their row through a TermDictionary, in which the id of
+ * each word is its row, so there is no per-word object and no boxed
+ * component anywhere.
+ * The buffer may wrap a heap array or live off-heap. Rows may also be
+ * split across several buffers of 2^segmentShift rows each, so that a
+ * mapped file larger than one buffer can address (2GB) is still read
+ * in place (see EmbeddingFile.map).
+ */
+public class VectorSlab implements Serializable {
+
+    // the word stored at each row
+    String[] terms;
+
+    // the row of each word... words added to it later
+    // have ids past the last row, and no vector
+    TermDictionary dictionary;
+
+    // floats of a segment of rows, at most
+    static final int SEGMENT_FLOATS = 1 << 28;
+
+    // all vector components, row-major, 2^segmentShift rows to a
+    // segment (a slab over one buffer has a single segment)
+    transient FloatBuffer[] segments;
+    transient int segmentShift;
+    transient int segmentMask;
+
+    // the norm of each row, computed on first use
+    transient double[] norms;
+
+    // true if every row has been scaled to unit length
+    boolean normalized;
+
+    int dimensions;
+    int size;
+
+    /**
+     * Creates a slab over a heap array
+     * @param terms the word stored at each row
+     * @param data all vector components, row after row
+     * @param dimensions the number of components of each vector
+     */
+    public VectorSlab(String[] terms, float[] data, int dimensions) {
+
+        this(terms, FloatBuffer.wrap(data), dimensions);
+    }
+
+    /**
+     * Creates a slab over the given buffer, which may
+     * be a heap buffer or a direct (off-heap) buffer
+     * @param terms the word stored at each row
+     * @param data all vector components, row after row
+     * @param dimensions the number of components of each vector
+     */
+    public VectorSlab(String[] terms, FloatBuffer data, int dimensions) {
+
+        this(terms, new TermDictionary(terms), data, dimensions);
+    }
+
+    /**
+     * Creates a slab sharing the term index of another slab
+     */
+    VectorSlab(String[] terms, TermDictionary dictionary,
+               FloatBuffer data, int dimensions) {
+
+        this(terms, dictionary, new FloatBuffer[] {data}, 31, dimensions);
+    }
+
+    /**
+     * Creates a slab over the given segments of rows
+     * @param terms the word stored at each row
+     * @param dictionary the dictionary giving each word its row as id
+     * @param segments vector components of 2^segmentShift rows each
+     *                 (but the last), row after row
+     * @param segmentShift log2 of the rows in a segment
+     * @param dimensions the number of components of each vector
+     */
+    VectorSlab(String[] terms, TermDictionary dictionary,
+               FloatBuffer[] segments, int segmentShift, int dimensions) {
+
+        this.terms = terms;
+        this.dictionary = dictionary;
+        this.segments = segments;
+        this.segmentShift = segmentShift;
+        this.segmentMask = (int) ((1L << segmentShift) - 1);
+        this.dimensions = dimensions;
+        this.size = terms.length;
+    }
+
+    /**
+     * @return log2 of the largest number of rows of `dimensions`
+     * floats a segment of at most SEGMENT_FLOATS floats holds
+     */
+    static int segment_shift(int dimensions) {
+
+        return 31 - Integer.numberOfLeadingZeros(Math.max(1, SEGMENT_FLOATS / Math.max(1, dimensions)));
+    }
+
+    /**
+     * @param term some word
+     * @return the row of the given word, or -1 if
+     * the word has no vector in this slab
+     */
+    public int get_row(String term) {
+
+        int row = dictionary.get_id(term);
+        return row < size ? row : -1;
+    }
+
+    /**
+     * @return the dictionary giving each word of this slab its row
+     * as id, shared by every slab made from this one
+     */
+    public TermDictionary get_dictionary() {
+
+        return this.dictionary;
+    }
+
+    public String get_term(int row) {
+
+        return terms[row];
+    }
+
+    /**
+     * @param row some row of this slab
+     * @return the position in its buffer (see get_data) of the
+     * first component of the given row
+     */
+    public int get_offset(int row) {
+
+        return (row & segmentMask) * dimensions;
+    }
+
+    /**
+     * @param row some row of this slab
+     * @return the buffer holding the vector of the given row, or null
+     * if this slab holds no float components (see QuantizedSlab)
+     */
+    public FloatBuffer get_data(int row) {
+
+        return segments[row >>> segmentShift];
+    }
+
+    /**
+     * @param row some row of this slab
+     * @param dimension some dimension
+     * @return the component of the vector at `row`
+     * in the given dimension
+     */
+    public float get(int row, int dimension) {
+
+        return segments[row >>> segmentShift].get((row & segmentMask) * dimensions + dimension);
+    }
+
+    /**
+     * @param rowA some row of this slab
+     * @param rowB some row of this slab
+     * @return the dot product of the vectors at `rowA` and `rowB`
+     */
+    public double dot(int rowA, int rowB) {
+
+        return VectorKernels.dot(get_data(rowA), get_offset(rowA),
+                get_data(rowB), get_offset(rowB), dimensions);
+    }
+
+    /**
+     * @param row some row of this slab
+     * @return the norm (magnitude) of the vector at `row`.
+     * Norms are computed once for the whole slab, then cached.
+     */
+    public double get_norm(int row) {
+
+        if(normalized) {
+
+            return 1.0;
+        }
+
+        if(norms == null) {
+
+            compute_norms();
+        }
+
+        return norms[row];
+    }
+
+    private synchronized void compute_norms() {
+
+        if(norms != null) {
+
+            return;
+        }
+
+        double[] result = new double[size];
+        for(int row = 0; row < size; row++) {
+
+            result[row] = Math.sqrt(dot(row, row));
+        }
+
+        norms = result;
+    }
+
+    /**
+     * @return a slab holding the same words as this one, with every
+     * vector scaled to unit length, in a new heap array (this slab is
+     * left untouched). Vectors of length zero are left as they are.
+     */
+    public VectorSlab normalize() {
+
+        if(normalized) {
+
+            return this;
+        }
+
+        float[] contents = new float[size * dimensions];
+        for(int row = 0; row < size; row++) {
+
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                contents[row * dimensions + dimension] = get(row, dimension);
+            }
+        }
+
+        for(int row = 0; row < size; row++) {
+
+            double norm = get_norm(row);
+            if(norm == 0.0) {
+
+                continue;
+            }
+
+            int offset = row * dimensions;
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                contents[offset + dimension] = (float) (contents[offset + dimension] / norm);
+            }
+        }
+
+        VectorSlab result = new VectorSlab(terms, dictionary, FloatBuffer.wrap(contents), dimensions);
+        result.normalized = true;
+        return result;
+    }
+
+    /**
+     * @param vocabulary the words we want to keep
+     * @return a slab holding only the words of this slab that are in
+     * `vocabulary`, in the same order, in a new heap array
+     */
+    public VectorSlab select(Set<String> vocabulary) {
+
+        ArrayList<String> kept = new ArrayList<>();
+        for(int row = 0; row < size; row++) {
+
+            if(vocabulary.contains(terms[row])) {
+
+                kept.add(terms[row]);
+            }
+        }
+
+        String[] keptTerms = kept.toArray(new String[kept.size()]);
+        float[] contents = new float[keptTerms.length * dimensions];
+        for(int index = 0; index < keptTerms.length; index++) {
+
+            int row = get_row(keptTerms[index]);
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                contents[index * dimensions + dimension] = get(row, dimension);
+            }
+        }
+
+        VectorSlab result = new VectorSlab(keptTerms, contents, dimensions);
+        result.normalized = normalized;
+        return result;
+    }
+
+    public boolean is_normalized() {
+
+        return this.normalized;
+    }
+
+    public int get_dimensions() {
+
+        return this.dimensions;
+    }
+
+    public int get_size() {
+
+        return this.size;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+
+        out.defaultWriteObject();
+
+        for(int row = 0; row < size; row++) {
+
+            for(int dimension = 0; dimension < dimensions; dimension++) {
+
+                out.writeFloat(get(row, dimension));
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+        in.defaultReadObject();
+
+        float[] contents = new float[size * dimensions];
+        for(int index = 0; index < contents.length; index++) {
+
+            contents[index] = in.readFloat();
+        }
+
+        segments = new FloatBuffer[] {FloatBuffer.wrap(contents)};
+        segmentShift = 31;
+        segmentMask = Integer.MAX_VALUE;
+    }
+}
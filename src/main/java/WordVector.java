@@ -1,22 +1,79 @@
 import info.debatty.java.lsh.LSHSuperBit;
 import java.io.*;
 import java.lang.Math;
+import java.nio.FloatBuffer;
 
 public class WordVector implements Serializable {
 
     String term;
-    Double[] contents;
+
+    // the components of this vector are the `dimensions` floats
+    // starting at `offset` in `data`... for words of an
+    // EmbeddingSpace, `data` is the slab shared by every word
+    transient FloatBuffer data;
+    int offset;
     int dimensions;
 
+    // for words of a quantized EmbeddingSpace, the slab and row
+    // holding this vector (`data` is then unused)
+    transient QuantizedSlab quantized;
+    int row;
+
+    // the locality sensitive hash of this vector, for the last
+    // LSHSuperBit object it was hashed with
+    transient LocalityHashTable.Slice localityHash;
+
+    // the SuperBit bit signature of this vector, for the last
+    // BitSignatureTable it was signed with
+    transient BitSignatureTable.Signature bitSignature;
+
+    // the norm of this vector, NaN until it is first needed
+    double norm = Double.NaN;
+
 
     public WordVector() {
     }
 
     public WordVector(Double[] newContents, String term) {
 
-        this.contents = newContents;
+        set_contents(newContents);
+        this.term = term;
+    }
+
+    public WordVector(float[] newContents, String term) {
+
+        this(term, FloatBuffer.wrap(newContents), 0, newContents.length);
+    }
+
+    /**
+     * Creates a vector that reads its components directly
+     * from the given buffer, without copying them
+     * @param term the word (or phrase) this vector represents
+     * @param data buffer holding the components
+     * @param offset position of the first component in `data`
+     * @param dimensions number of components
+     */
+    public WordVector(String term, FloatBuffer data, int offset, int dimensions) {
+
         this.term = term;
-        dimensions = newContents.length;
+        this.data = data;
+        this.offset = offset;
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Creates a vector that reads its components from a row
+     * of a quantized slab
+     * @param term the word this vector represents
+     * @param quantized slab holding the components
+     * @param row the row of this word in `quantized`
+     */
+    public WordVector(String term, QuantizedSlab quantized, int row) {
+
+        this.term = term;
+        this.quantized = quantized;
+        this.row = row;
+        this.dimensions = quantized.get_dimensions();
     }
 
     /**
@@ -24,13 +81,13 @@ public class WordVector implements Serializable {
      * @return the vector contents of this WordVector,
      * inverted (each component multiplied by -1)
      */
-    public Double[] get_inverse_contents() {
+    public float[] get_inverse_contents() {
 
-        Double[] inverseContents = new Double[dimensions];
+        float[] inverseContents = new float[dimensions];
 
         for(int i = 0; i < dimensions; i++) {
 
-            inverseContents[i] = -1.0 * contents[i];
+            inverseContents[i] = -1.0f * get(i);
         }
 
         return inverseContents;
@@ -44,19 +101,51 @@ public class WordVector implements Serializable {
      */
     public WordVector get_inverse() {
 
-        Double[] resultContents = this.get_inverse_contents();
+        float[] resultContents = this.get_inverse_contents();
         String resultPhrase = "~\"" + this.get_term() + "\"";
-        return new WordVector(resultContents, resultPhrase);
+
+        // the inverse has the same norm as this vector
+        WordVector result = new WordVector(resultContents, resultPhrase);
+        result.norm = this.norm;
+        return result;
     }
 
     public void set_dimensions(int newDimensions) {
 
         this.dimensions = newDimensions;
+        this.norm = Double.NaN;
+    }
+
+    /**
+     * @param dimension some dimension of this vector
+     * @return the component of this vector in that dimension
+     */
+    public float get(int dimension) {
+
+        if(quantized != null) {
+
+            return quantized.get(row, dimension);
+        }
+
+        return data.get(offset + dimension);
     }
 
+    /**
+     *
+     * @return a boxed copy of the contents of this vector.
+     * Prefer `get` or `get_primitive_contents`, this is only
+     * kept for callers that need Double objects.
+     */
     public Double[] get_contents() {
 
-        return this.contents;
+        Double[] result = new Double[dimensions];
+        for(int dimension = 0; dimension < dimensions;
+            dimension++) {
+
+            result[dimension] = (double) get(dimension);
+        }
+
+        return result;
     }
 
     /**
@@ -70,7 +159,7 @@ public class WordVector implements Serializable {
         for(int dimension = 0; dimension < get_dimensions();
             dimension++) {
 
-            result[dimension] = contents[dimension];
+            result[dimension] = get(dimension);
         }
 
         return result;
@@ -83,7 +172,28 @@ public class WordVector implements Serializable {
 
     public void set_contents(Double[] newContents) {
 
-        this.contents = newContents;
+        float[] contents = new float[newContents.length];
+        for(int dimension = 0; dimension < contents.length;
+            dimension++) {
+
+            contents[dimension] = newContents[dimension].floatValue();
+        }
+
+        this.data = FloatBuffer.wrap(contents);
+        this.offset = 0;
+        this.dimensions = contents.length;
+        this.quantized = null;
+        this.norm = Double.NaN;
+    }
+
+    public FloatBuffer get_data() {
+
+        return this.data;
+    }
+
+    public int get_offset() {
+
+        return this.offset;
     }
 
     public String get_term() {
@@ -98,19 +208,27 @@ public class WordVector implements Serializable {
 
     /**
      *
-     * @return the norm (magnitude) of this vector's contents
+     * @return the norm (magnitude) of this vector's contents.
+     * It is only computed once, then cached.
      */
     public double get_norm() {
 
-        double sum = 0;
+        if(Double.isNaN(norm)) {
 
-        for(int dimension = 0; dimension < contents.length;
-            dimension++) {
-
-            sum += contents[dimension] * contents[dimension];
+            norm = Math.sqrt(dot_product(this, this));
         }
 
-        return Math.sqrt(sum);
+        return norm;
+    }
+
+    /**
+     * Sets the cached norm of this vector, for callers that
+     * already know it (e.g. EmbeddingSpace)
+     * @param norm the norm of this vector's contents
+     */
+    public void set_norm(double norm) {
+
+        this.norm = norm;
     }
 
 
@@ -125,8 +243,8 @@ public class WordVector implements Serializable {
      */
     public static double cosine_similarity(WordVector vec1, WordVector vec2, Double tolerance) {
 
-
-        Double result = dot_product(vec1, vec2) / (vec1.get_norm() * vec2.get_norm());
+        // norms are cached, so this is a single dot product
+        double result = dot_product(vec1, vec2) / (vec1.get_norm() * vec2.get_norm());
 
         return result >= tolerance ? result : 0.0;
     }
@@ -139,15 +257,38 @@ public class WordVector implements Serializable {
      */
     public static double dot_product(WordVector vec1, WordVector vec2) {
 
-        double result = 0;
+        if(vec1.quantized != null || vec2.quantized != null) {
+
+            return quantized_dot_product(vec1, vec2);
+        }
+
+        return VectorKernels.dot(vec1.data, vec1.offset, vec2.data, vec2.offset,
+                vec1.get_dimensions());
+    }
+
+    /**
+     * Dot product where at least one vector is quantized, computed
+     * on the quantized form whenever possible
+     */
+    private static double quantized_dot_product(WordVector vec1, WordVector vec2) {
+
+        if(vec1.quantized != null && vec1.quantized == vec2.quantized) {
+
+            return vec1.quantized.dot(vec1.row, vec2.row);
+        } else if(vec1.quantized != null && vec2.quantized == null) {
 
-        Double[] contents1 = vec1.get_contents();
-        Double[] contents2 = vec2.get_contents();
+            return vec1.quantized.dot(vec1.row, vec2.data, vec2.offset);
+        } else if(vec2.quantized != null && vec1.quantized == null) {
 
+            return vec2.quantized.dot(vec2.row, vec1.data, vec1.offset);
+        }
+
+        // vectors of two different quantized slabs
+        double result = 0;
         for(int dimension = 0; dimension < vec1.get_dimensions();
             dimension++) {
 
-            result += contents1[dimension] * contents2[dimension];
+            result += (double) vec1.get(dimension) * vec2.get(dimension);
         }
 
         return result;
@@ -157,21 +298,18 @@ public class WordVector implements Serializable {
      *
      * @param vec1 first vector we will add
      * @param vec2 second vector we will add
-     * @return array of Doubles giving the addition
+     * @return array of floats giving the addition
      * of the contents of each given vector
      */
-    public static Double[] add_vector_contents(WordVector vec1, WordVector vec2) {
+    public static float[] add_vector_contents(WordVector vec1, WordVector vec2) {
 
         int dimensions = vec1.get_dimensions();
-        Double[] resultContents = new Double[dimensions];
-
-        Double[] contents1 = vec1.get_contents();
-        Double[] contents2 = vec2.get_contents();
+        float[] resultContents = new float[dimensions];
 
         for(int dimension = 0; dimension < dimensions;
             dimension++) {
 
-            resultContents[dimension] = contents1[dimension] + contents2[dimension];
+            resultContents[dimension] = vec1.get(dimension) + vec2.get(dimension);
         }
 
         return resultContents;
@@ -192,7 +330,7 @@ public class WordVector implements Serializable {
 
         // contents of WordVector is addition of contents
         // of each given vector
-        Double[] resultContents = add_vector_contents(vec1, vec2);
+        float[] resultContents = add_vector_contents(vec1, vec2);
 
         return new WordVector(resultContents, resultPhrase);
     }
@@ -215,7 +353,32 @@ public class WordVector implements Serializable {
      */
     public int[] get_locality_hash(LSHSuperBit lsh) {
 
-        return lsh.hash(this.get_primitive_contents());
+        return locality_hash(lsh).to_array();
+    }
+
+    /**
+     * @param lsh locality sensitive hashing object
+     * @return the hash of this vector with the given object. It is
+     * only computed the first time, or taken from the LocalityHashTable
+     * of our EmbeddingSpace (see set_locality_hash).
+     */
+    public LocalityHashTable.Slice locality_hash(LSHSuperBit lsh) {
+
+        LocalityHashTable.Slice hash = localityHash;
+
+        if(hash == null || hash.lsh != lsh) {
+
+            int[] values = lsh.hash(this.get_primitive_contents());
+            hash = new LocalityHashTable.Slice(lsh, values, 0, values.length);
+            localityHash = hash;
+        }
+
+        return hash;
+    }
+
+    public void set_locality_hash(LocalityHashTable.Slice hash) {
+
+        this.localityHash = hash;
     }
 
     /**
@@ -228,18 +391,81 @@ public class WordVector implements Serializable {
     public static double compare_hash(WordVector vecA, WordVector vecB,
                                       LSHSuperBit lsh) {
 
-        int[] hashA = vecA.get_locality_hash(lsh);
-        int[] hashB = vecB.get_locality_hash(lsh);
+        LocalityHashTable.Slice hashA = vecA.locality_hash(lsh);
+        LocalityHashTable.Slice hashB = vecB.locality_hash(lsh);
+
+        return hashA.matches(hashB) ? 1.0 : 0.0;
+    }
+
+    /**
+     * @param signatures table of bit signatures
+     * @return the bit signature of this vector for the given table. It
+     * is only computed the first time, or taken from the table itself
+     * for words of its EmbeddingSpace (see set_bit_signature).
+     */
+    public BitSignatureTable.Signature bit_signature(BitSignatureTable signatures) {
+
+        BitSignatureTable.Signature signature = bitSignature;
 
-        for(int stageIndex = 0; stageIndex < hashA.length;
-            stageIndex++) {
+        if(signature == null || signature.table != signatures) {
 
-            if (hashA[stageIndex] != hashB[stageIndex]) {
+            signature = signatures.sign(this);
+            bitSignature = signature;
+        }
+
+        return signature;
+    }
+
+    public void set_bit_signature(BitSignatureTable.Signature signature) {
+
+        this.bitSignature = signature;
+    }
+
+    /**
+     *
+     * @param vecA
+     * @param vecB
+     * @param signatures the table of bit signatures we will use
+     * @param tolerance the tolerance level of the calculation, meaning
+     *                  if the estimated similarity is below this tolerance
+     *                  level, we will return zero.
+     * @return the cosine similarity of vecA and vecB, estimated from
+     * the Hamming distance between their bit signatures
+     */
+    public static double hamming_similarity(WordVector vecA, WordVector vecB,
+                                            BitSignatureTable signatures,
+                                            Double tolerance) {
+
+        double result = signatures.estimate_cosine(vecA.bit_signature(signatures),
+                vecB.bit_signature(signatures));
+
+        return result >= tolerance ? result : 0.0;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+
+        out.defaultWriteObject();
+
+        for(int dimension = 0; dimension < dimensions;
+            dimension++) {
+
+            out.writeFloat(get(dimension));
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+        in.defaultReadObject();
+
+        float[] contents = new float[dimensions];
+        for(int dimension = 0; dimension < dimensions;
+            dimension++) {
 
-                return 0.0;
-            }
+            contents[dimension] = in.readFloat();
         }
 
-        return 1.0;
+        data = FloatBuffer.wrap(contents);
+        offset = 0;
+        quantized = null;
     }
 }
@@ -25,7 +25,7 @@ public class test {
         EmbeddingSpace space = new EmbeddingSpace("C:\\resources\\small_words.txt");
 
 
-        TranslationMatrix testMatrix = TranslationMatrix.read("C:\\resources\\matrices\\similarity_matrix_0.55");
+        SimilarityMatrix testMatrix = SimilarityMatrix.read("C:\\resources\\matrices\\similarity_matrix_0.55");
 
 
         String INDEX_DIR = "C:\\resources\\index-robust04-20191213";
@@ -0,0 +1,134 @@
+import java.nio.FloatBuffer;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD dot-product kernel built on the JDK Vector API. This class is
+ * only loaded on Java 16+, and only works when the JVM is started with
+ * `--add-modules jdk.incubator.vector`... otherwise loading it fails
+ * and VectorKernels falls back to its scalar loop.
+ */
+class SimdDotKernel {
+
+    static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    // the vectors of buffers without an array are copied here, two per thread
+    static final ThreadLocal<float[][]> SCRATCH = new ThreadLocal<float[][]>() {
+        @Override
+        protected float[][] initialValue() {
+            return new float[2][0];
+        }
+    };
+
+    static boolean available() {
+
+        // a single lane is no better than our scalar loop
+        return SPECIES.length() > 1;
+    }
+
+    static double dot(float[] contents1, int offset1,
+                      float[] contents2, int offset2,
+                      int dimensions) {
+
+        FloatVector sum = FloatVector.zero(SPECIES);
+
+        int dimension = 0;
+        int bound = SPECIES.loopBound(dimensions);
+        for(; dimension < bound; dimension += SPECIES.length()) {
+
+            FloatVector vec1 = FloatVector.fromArray(SPECIES, contents1, offset1 + dimension);
+            FloatVector vec2 = FloatVector.fromArray(SPECIES, contents2, offset2 + dimension);
+            sum = vec1.fma(vec2, sum);
+        }
+
+        double result = sum.reduceLanes(VectorOperators.ADD);
+
+        for(; dimension < dimensions; dimension++) {
+
+            result += (double) contents1[offset1 + dimension] * contents2[offset2 + dimension];
+        }
+
+        return result;
+    }
+
+    /**
+     * Dot product of two vectors of buffers that may not have an array
+     * (direct or mapped buffers): each vector is copied in bulk to a
+     * scratch array, which is then multiplied as heap vectors are
+     */
+    static double dot(FloatBuffer data1, int offset1,
+                      FloatBuffer data2, int offset2,
+                      int dimensions) {
+
+        float[][] scratch = SCRATCH.get();
+        if(scratch[0].length < dimensions) {
+
+            scratch[0] = new float[dimensions];
+            scratch[1] = new float[dimensions];
+        }
+
+        data1.get(offset1, scratch[0], 0, dimensions);
+        data2.get(offset2, scratch[1], 0, dimensions);
+
+        return dot(scratch[0], 0, scratch[1], 0, dimensions);
+    }
+
+    /**
+     * VectorKernels.dot_rows, each vector summed exactly as in `dot`
+     */
+    static void dot_rows(float[] contents1, int offset1,
+                         float[] contents2, int offset2,
+                         int count, int dimensions, double[] result) {
+
+        int bound = SPECIES.loopBound(dimensions);
+        int vector = 0;
+
+        for(; vector + 3 < count; vector += 4) {
+
+            int offsetA = offset2 + vector * dimensions;
+            int offsetB = offsetA + dimensions;
+            int offsetC = offsetB + dimensions;
+            int offsetD = offsetC + dimensions;
+
+            FloatVector sumA = FloatVector.zero(SPECIES);
+            FloatVector sumB = FloatVector.zero(SPECIES);
+            FloatVector sumC = FloatVector.zero(SPECIES);
+            FloatVector sumD = FloatVector.zero(SPECIES);
+
+            int dimension = 0;
+            for(; dimension < bound; dimension += SPECIES.length()) {
+
+                FloatVector vec1 = FloatVector.fromArray(SPECIES, contents1, offset1 + dimension);
+                sumA = vec1.fma(FloatVector.fromArray(SPECIES, contents2, offsetA + dimension), sumA);
+                sumB = vec1.fma(FloatVector.fromArray(SPECIES, contents2, offsetB + dimension), sumB);
+                sumC = vec1.fma(FloatVector.fromArray(SPECIES, contents2, offsetC + dimension), sumC);
+                sumD = vec1.fma(FloatVector.fromArray(SPECIES, contents2, offsetD + dimension), sumD);
+            }
+
+            double a = sumA.reduceLanes(VectorOperators.ADD);
+            double b = sumB.reduceLanes(VectorOperators.ADD);
+            double c = sumC.reduceLanes(VectorOperators.ADD);
+            double d = sumD.reduceLanes(VectorOperators.ADD);
+
+            for(; dimension < dimensions; dimension++) {
+
+                double x = contents1[offset1 + dimension];
+                a += x * contents2[offsetA + dimension];
+                b += x * contents2[offsetB + dimension];
+                c += x * contents2[offsetC + dimension];
+                d += x * contents2[offsetD + dimension];
+            }
+
+            result[vector] = a;
+            result[vector + 1] = b;
+            result[vector + 2] = c;
+            result[vector + 3] = d;
+        }
+
+        for(; vector < count; vector++) {
+
+            result[vector] = dot(contents1, offset1, contents2, offset2 + vector * dimensions, dimensions);
+        }
+    }
+}